@@ -0,0 +1,50 @@
+package jmh;
+
+import data.DataUtils;
+import org.openjdk.jmh.annotations.*;
+import rooms.Message;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataUtils.addMessage as seen by the broadcasting thread: an enqueue on the persistence queue,
+ * with the writer thread appending to the message log in the background (blocking only if it falls behind).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.data.dir=target/jmh-data/add", "-Dchat.log.level=WARN"})
+public class AddMessageBenchmark {
+    @Param({"1", "100"})
+    public int rooms;
+
+    private static final String TEXT = "mensagem de teste com um tamanho normal";
+
+    private String[] names;
+    private long[] seqs; // the log refuses a message that is not at its own position
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        names = new String[rooms];
+        seqs = new long[rooms];
+        for (int i = 0; i < rooms; i++) {
+            names[i] = "room" + i;
+            seqs[i] = DataUtils.messageCount(names[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        DataUtils.close();
+    }
+
+    @Benchmark
+    public void addMessage() {
+        int i = next;
+        next = next + 1 == names.length ? 0 : next + 1;
+        DataUtils.addMessage(names[i], new Message(0, seqs[i]++, 0, "user", TEXT));
+    }
+}
@@ -0,0 +1,52 @@
+package jmh;
+
+import data.DataUtils;
+import org.openjdk.jmh.annotations.*;
+import rooms.ChatRoom;
+import rooms.Session;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatRoom.broadcast with K members whose sessions write to a discarding stream: history, persistence
+ * enqueue, frame encoding and one queue offer per member. Delivery itself runs on the sessions' writer threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.data.dir=target/jmh-data/broadcast", "-Dchat.log.level=WARN"})
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    private ChatRoom room;
+    private final List<Session> sessions = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        room = new ChatRoom("bench", false, null, new int[0]);
+        for (int i = 0; i < members; i++) {
+            Session s = Session.open(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+            s.setUsername("user" + i);
+            room.join(s);
+            sessions.add(s);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Session s : sessions) s.close();
+        DataUtils.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast("user0", "olá a todos, mensagem de teste com um tamanho normal");
+    }
+}
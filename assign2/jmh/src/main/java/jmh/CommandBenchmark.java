@@ -0,0 +1,40 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import protocol.Command;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting of the lines read in the connection loop (Server.handleCommand), against the
+ * line.split(" ", 3) it replaced, on a mix of the most common commands.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    private final String[] lines = {
+            "MSG olá a todos, mensagem de teste com um tamanho normal",
+            "PING",
+            "ENTER geral",
+            "HISTORY geral 1200 50",
+    };
+
+    @Benchmark
+    public void commandSplit(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(Command.split(line));
+        }
+    }
+
+    @Benchmark
+    public void stringSplit(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(line.split(" ", 3));
+        }
+    }
+}
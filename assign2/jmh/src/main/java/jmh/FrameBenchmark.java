@@ -0,0 +1,80 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import protocol.BinaryCodec;
+import protocol.Command;
+import protocol.FrameDecoder;
+import protocol.Opcode;
+import rooms.Frame;
+import rooms.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text protocol against binary frames, with -prof gc for the bytes allocated per operation.
+ * Reading a message: a text line is decoded, split and the message put back together (Server.handleCommand
+ * and handleMsg); a SEND frame goes through FrameDecoder, which allocates nothing but the payload String.
+ * Writing: one broadcast frame encoded in each form, against the "sender: text" concatenation plus getBytes
+ * and copy that handleMsg and Frame.of used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    private static final String MESSAGE = "olá a todos, mensagem de teste com um tamanho normal";
+    private static final String SENDER = "user0";
+
+    private final byte[] textLine = ("MSG " + MESSAGE + "\n").getBytes(StandardCharsets.UTF_8);
+    private final ByteBuffer binaryFrame = ByteBuffer.wrap(BinaryCodec.encode(Opcode.SEND, 1, 0, MESSAGE));
+    private final Message message = new Message(1, 42, 0, SENDER, MESSAGE);
+    private final FrameDecoder decoder = new FrameDecoder();
+    private Blackhole blackhole;
+    private final FrameDecoder.Listener listener = (opcode, roomId, seq, payload, offset, length) ->
+            blackhole.consume(new String(payload, offset, length, StandardCharsets.UTF_8));
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup(Blackhole bh) {
+        blackhole = bh;
+    }
+
+    @Benchmark
+    public String readText() {
+        String line = new String(textLine, 0, textLine.length - 1, StandardCharsets.UTF_8);
+        String[] parts = Command.split(line);
+        return parts.length > 2 ? parts[1] + " " + parts[2] : parts[1];
+    }
+
+    @Benchmark
+    public void readBinary() throws IOException {
+        binaryFrame.rewind();
+        decoder.feed(binaryFrame, listener);
+    }
+
+    @Benchmark
+    public byte[] encodeGetBytes() {
+        byte[] text = (SENDER + ": " + MESSAGE).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = Arrays.copyOf(text, text.length + 1);
+        bytes[text.length] = '\n';
+        return bytes;
+    }
+
+    @Benchmark
+    public void encodeText() throws IOException {
+        Frame.message(message).writeTo(sink, false);
+    }
+
+    @Benchmark
+    public void encodeBinary() throws IOException {
+        Frame.message(message).writeTo(sink, true);
+    }
+}
@@ -0,0 +1,22 @@
+package jmh;
+
+import auth.AuthenticationHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** AuthenticationHandler.hash, run once per LOGIN and REGISTER. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    private final String password = "uma-password-razoavel";
+
+    @Benchmark
+    public String hash() {
+        return AuthenticationHandler.hash(password);
+    }
+}
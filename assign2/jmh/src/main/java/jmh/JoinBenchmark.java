@@ -0,0 +1,58 @@
+package jmh;
+
+import data.DataUtils;
+import org.openjdk.jmh.annotations.*;
+import rooms.ChatRoom;
+import rooms.Session;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatRoom.join (banner, the whole in-memory history, entry notice) followed by leave, with the
+ * in-memory history holding the given number of messages. With compressed, the session asked for
+ * COMPRESS DEFLATE and gets the room's cached history block instead of one frame per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.data.dir=target/jmh-data/join", "-Dchat.log.level=WARN"})
+public class JoinBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int history;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private ChatRoom room;
+    private Session session;
+
+    @Setup
+    public void setup() {
+        // Read when ChatRoom is initialized; every parameter value runs in its own fork
+        System.setProperty("chat.history.capacity", Integer.toString(history));
+        room = new ChatRoom("join-" + history, false, null, new int[0]);
+        room.loadHistory();
+        for (int i = 0; i < history; i++) {
+            room.broadcast("user" + (i % 10), "mensagem número " + i);
+        }
+        session = Session.open(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+        session.setUsername("joiner");
+        if (compressed) session.enableCompression();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+        DataUtils.close();
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        room.join(session);
+        room.leave(session);
+    }
+}
@@ -0,0 +1,59 @@
+package jmh;
+
+import data.DataParser;
+import data.DataUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataUtils.loadData on a data.json with the given number of users and rooms. It also runs on every
+ * room creation (addChatroom), so its cost grows with the size of the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.data.dir=target/jmh-data/load", "-Dchat.log.level=WARN"})
+public class LoadDataBenchmark {
+    private static final Path DATA_FILE = Paths.get("target/jmh-data/load/data.json");
+
+    @Param({"100", "10000"})
+    public int users;
+
+    @Param({"10", "1000"})
+    public int rooms;
+
+    @Setup
+    public void setup() throws IOException {
+        JSONArray userList = new JSONArray();
+        for (int i = 0; i < users; i++) {
+            userList.put(new JSONObject().put("username", "user" + i).put("passwordHash", "0".repeat(64)));
+        }
+        JSONArray roomList = new JSONArray();
+        for (int i = 0; i < rooms; i++) {
+            roomList.put(new JSONObject().put("name", "room" + i).put("isAI", i % 10 == 0));
+        }
+        Files.createDirectories(DATA_FILE.getParent());
+        Files.write(DATA_FILE, new JSONObject().put("users", userList).put("chatrooms", roomList)
+                .toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        DataUtils.close();
+    }
+
+    @Benchmark
+    public DataParser loadData() {
+        return DataUtils.loadData();
+    }
+}
@@ -0,0 +1,69 @@
+package jmh;
+
+import data.DataUtils;
+import data.SearchIndex;
+import org.openjdk.jmh.annotations.*;
+import rooms.ChatRoom;
+import rooms.Message;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatRoom.search over a room with the given number of messages, each of eight words out of twenty plus
+ * one unique word: a term found in a third of the room, three such terms together, and the unique word of
+ * an old message. The hits outside the in-memory history are read back from the log for their text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dchat.data.dir=target/jmh-data/search", "-Dchat.log.level=WARN",
+        "-Dchat.log.fsync=NEVER"})
+public class SearchBenchmark {
+    private static final String[] WORDS = {"olá", "mundo", "número", "java", "servidor", "sala", "mensagem", "teste",
+            "rede", "socket", "índice", "busca", "rápido", "lento", "café", "pão", "casa", "carro", "livro", "tempo"};
+
+    @Param({"100000", "1000000"})
+    public int messages;
+
+    @Param({"common", "three", "rare"})
+    public String query;
+
+    private ChatRoom room;
+    private List<String> terms;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        room = new ChatRoom("search-" + messages, false, null, new int[0]);
+        room.loadHistory();
+        // The log survives between runs, only a new data directory is filled
+        long stored = DataUtils.messageCount(room.getName());
+        Random random = new Random(42);
+        for (long i = stored; i < messages; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = 0; w < 8; w++) sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            room.broadcast("user" + (i % 50), sb.append("m").append(i).toString());
+        }
+        while (DataUtils.getPersistenceQueue().written() < messages - stored) Thread.sleep(10);
+
+        terms = SearchIndex.terms(switch (query) {
+            case "common" -> "café";
+            case "three" -> "café pão livro";
+            default -> "m" + messages / 3;
+        });
+        room.search(terms, 20); // loads the room's index
+    }
+
+    @TearDown
+    public void tearDown() {
+        DataUtils.close();
+    }
+
+    @Benchmark
+    public List<Message> search() {
+        return room.search(terms, 20);
+    }
+}
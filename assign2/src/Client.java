@@ -1,15 +1,22 @@
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import auth.AuthenticationHandler;
+import protocol.BinaryCodec;
+import protocol.Opcode;
 
 public class Client {
 
     private static SSLSocket socket;
     private static PrintWriter writer;
-    private static BufferedReader reader;
+    private static DataOutputStream output;  // under writer; binary frames are written here directly
+    private static BufferedInputStream input; // lines are read byte by byte, so nothing of a frame is buffered away
+    private static DataInputStream frames;
     private static BufferedReader console;
     private static volatile String sessionToken = null;
     private static String username;
@@ -20,6 +27,19 @@ public class Client {
     private static final String TRUSTSTORE_PASSWORD = "password";
     private static volatile boolean running = true;
 
+    // Binary frames unless -Dchat.protocol=text; a server that refuses the upgrade keeps the text protocol
+    private static final boolean USE_BINARY = !System.getProperty("chat.protocol", "binary").equals("text");
+    private static volatile boolean binary = false;
+    // History replays as one DEFLATE block unless -Dchat.compress=false
+    private static final boolean USE_COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+    private static volatile int currentRoomId = 0;
+    private static volatile long lastSeq = -1; // last message of currentRoomId seen, sent back on RESUME_SESSION
+
+    // Display state of the listener
+    private static boolean inHistory = true;
+    private static boolean inPage = false;
+    private static boolean inAnswer = false; // AI answer being streamed on the current line
+
     private static final ReentrantLock ioLock = new ReentrantLock();
 
     public static void main(String[] args) throws Exception {
@@ -85,6 +105,10 @@ public class Client {
         System.out.println("/enter <room> - Enter a room");
         System.out.println("/create <room> - Create a new room");
         System.out.println("/createai <room> <prompt> - Create an AI room");
+        System.out.println("/history <room> <beforeSeq> <count> - Show older messages");
+        System.out.println("/search <room|*> <terms> - Find messages with every term");
+        System.out.println("/aicache [on|off] - Show or switch the AI room's response cache");
+        System.out.println("/stats [sessions] - Show server metrics");
         System.out.println("/leave - Leave current room");
         System.out.println("/exit - Exit the system");
         System.out.println("--------------------------------------------------------------------------------------------");
@@ -123,6 +147,26 @@ public class Client {
                         }
                         command = "CREATE_AI " + parts[1] + " " + parts[2];
                         break;
+                    case "/history":
+                        if (parts.length < 3 || parts[2].split(" ").length < 2) {
+                            System.out.println("Usage: /history <room_name> <beforeSeq> <count>");
+                            continue;
+                        }
+                        command = "HISTORY " + parts[1] + " " + parts[2];
+                        break;
+                    case "/search":
+                        if (parts.length < 3) {
+                            System.out.println("Usage: /search <room_name|*> <terms>");
+                            continue;
+                        }
+                        command = "SEARCH " + parts[1] + " " + parts[2];
+                        break;
+                    case "/aicache":
+                        command = parts.length > 1 ? "AI_CACHE " + parts[1] : "AI_CACHE";
+                        break;
+                    case "/stats":
+                        command = parts.length > 1 ? "STATS " + parts[1] : "STATS";
+                        break;
                     case "/leave":
                         System.out.println("--------------------------------------------------------------------------------------------");
                         System.out.println("Available commands:");
@@ -130,6 +174,10 @@ public class Client {
                         System.out.println("/enter <room> - Enter a room");
                         System.out.println("/create <room> - Create a new room");
                         System.out.println("/createai <room> - Create an AI room");
+                        System.out.println("/history <room> <beforeSeq> <count> - Show older messages");
+                        System.out.println("/search <room|*> <terms> - Find messages with every term");
+                        System.out.println("/aicache [on|off] - Show or switch the AI room's response cache");
+                        System.out.println("/stats [sessions] - Show server metrics");
                         System.out.println("/leave - Leave current room");
                         System.out.println("/exit - Exit the system");
                         System.out.println("--------------------------------------------------------------------------------------------");
@@ -145,6 +193,10 @@ public class Client {
                         System.out.println("/enter <room> - Enter a room");
                         System.out.println("/create <room> - Create a new room");
                         System.out.println("/createai <room> - Create an AI room");
+                        System.out.println("/history <room> <beforeSeq> <count> - Show older messages");
+                        System.out.println("/search <room|*> <terms> - Find messages with every term");
+                        System.out.println("/aicache [on|off] - Show or switch the AI room's response cache");
+                        System.out.println("/stats [sessions] - Show server metrics");
                         System.out.println("/leave - Leave current room");
                         System.out.println("/exit - Exit the system");
                         System.out.println("--------------------------------------------------------------------------------------------");
@@ -155,16 +207,18 @@ public class Client {
                 // Lock apenas na escrita
                 ioLock.lock();
                 try {
-                    writer.println(command);
-                    writer.flush();
+                    send(Opcode.COMMAND, command);
+                } catch (IOException e) {
+                    System.out.println("[!] Could not send: " + e.getMessage());
                 } finally {
                     ioLock.unlock();
                 }
             } else {
                 ioLock.lock();
                 try {
-                    writer.println("MSG " + input);
-                    writer.flush();
+                    send(Opcode.SEND, input);
+                } catch (IOException e) {
+                    System.out.println("[!] Could not send: " + e.getMessage());
                 } finally {
                     ioLock.unlock();
                 }
@@ -200,9 +254,13 @@ public class Client {
 
             newSock.setSoTimeout(15000); // 15 seconds timeout
 
+            // Only frames carry sequence numbers, so a text connection cannot tell where it stopped
+            boolean knowsSeq = binary && currentRoomId != 0;
+
             // 2) Prepare new I/O objects
-            PrintWriter newWriter = new PrintWriter(newSock.getOutputStream(), true);
-            BufferedReader newReader = new BufferedReader(new InputStreamReader(newSock.getInputStream()));
+            DataOutputStream newOutput = new DataOutputStream(new BufferedOutputStream(newSock.getOutputStream()));
+            PrintWriter newWriter = new PrintWriter(new OutputStreamWriter(newOutput, StandardCharsets.UTF_8), true);
+            BufferedInputStream newInput = new BufferedInputStream(newSock.getInputStream());
 
 
             // 3) ATOMICALLY swap in the new socket, writer, and reader
@@ -210,7 +268,10 @@ public class Client {
             try {
                 socket = newSock;
                 writer = newWriter;
-                reader = newReader;
+                output = newOutput;
+                input = newInput;
+                frames = new DataInputStream(newInput);
+                binary = false; // a new connection starts in text
             } finally {
                 ioLock.unlock();
             }
@@ -218,7 +279,7 @@ public class Client {
 
             // 4) Send login or resume-session
             if (!initial && sessionToken != null) {
-                writer.println("RESUME_SESSION " + sessionToken);
+                writer.println("RESUME_SESSION " + sessionToken + (knowsSeq ? " " + currentRoomId + " " + lastSeq : ""));
             } else if (register) {
                 writer.println("REGISTER " + username + " " + password);
             } else {
@@ -226,7 +287,7 @@ public class Client {
             }
 
             // 5) Read server’s response
-            String serverResponse = reader.readLine();
+            String serverResponse = readLine();
             if (serverResponse == null) {
                 System.out.println("Server closed connection unexpectedly.");
                 return false;
@@ -235,7 +296,7 @@ public class Client {
             // 6) Handle new token if issued
             if (serverResponse.startsWith("TOKEN:")) {
                 sessionToken = serverResponse.substring(6).trim();
-                serverResponse = reader.readLine(); // Expecting "AUTH_OK"
+                serverResponse = readLine(); // Expecting "AUTH_OK"
             }
 
             if (serverResponse.startsWith("AUTH_FAIL")) {
@@ -248,6 +309,8 @@ public class Client {
 
             if("AUTH_OK".equals(serverResponse)) {
                 System.out.println("Authentication successful. Welcome, " + username + "!");
+                if (USE_COMPRESSION) negotiateCompression();
+                if (USE_BINARY) upgrade();
             } else if ("REGISTER_OK".equals(serverResponse)) {
                 System.out.println("Registration successful!");
                 System.out.println("Now hop in with: ");
@@ -264,33 +327,141 @@ public class Client {
         }
     }
 
+    // Asks for binary frames; lines that arrive before the answer (e.g. the room rejoined by RESUME_SESSION) are shown as usual
+    private static void upgrade() throws IOException {
+        writer.println("UPGRADE BINARY");
+        String line;
+        while ((line = readLine()) != null) {
+            if (line.equals("UPGRADE_OK")) {
+                binary = true;
+                return;
+            }
+            if (line.startsWith("ERROR")) return; // older server or binary disabled, stay on text
+            handleTextLine(line);
+        }
+        throw new IOException("Connection closed during upgrade");
+    }
+
+    // Asks for compressed history replays, still in text; an ERROR (older server, disabled) keeps them uncompressed
+    private static void negotiateCompression() throws IOException {
+        writer.println("COMPRESS DEFLATE");
+        String line;
+        while ((line = readLine()) != null) {
+            if (line.startsWith("COMPRESS_OK") || line.startsWith("ERROR")) return;
+            handleTextLine(line);
+        }
+        throw new IOException("Connection closed during compression negotiation");
+    }
+
+    // A text line, or the header of a compressed history block whose bytes follow it on the stream
+    private static void handleTextLine(String line) throws IOException {
+        if (line.startsWith("HISTORY_BLOCK ")) {
+            String[] parts = line.split(" ");
+            byte[] block = input.readNBytes(Integer.parseInt(parts[3]));
+            handleBlock(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), block);
+        } else {
+            handleLine(line);
+        }
+    }
+
+    // Inflates a HISTORY block: int32 length + UTF-8 "sender: text" per message, consecutive sequence numbers
+    private static void handleBlock(int roomId, long firstSeq, byte[] block) throws IOException {
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(block.length * 4);
+        try {
+            inflater.setInput(block);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Truncated history block");
+                raw.write(buf, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt history block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+        long seq = firstSeq;
+        while (records.available() > 0) {
+            byte[] line = new byte[records.readInt()];
+            records.readFully(line);
+            if (roomId == currentRoomId && seq > lastSeq) lastSeq = seq;
+            seq++;
+            handleLine(new String(line, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Text line or binary frame, whichever was negotiated; callers hold ioLock
+    private static void send(byte opcode, String text) throws IOException {
+        if (binary) {
+            output.write(BinaryCodec.encode(opcode, opcode == Opcode.SEND ? currentRoomId : 0, 0, text));
+            output.flush();
+        } else {
+            writer.println(opcode == Opcode.SEND ? "MSG " + text : text);
+        }
+    }
+
+    // One line of the text protocol, read from the same stream the frames come from after the upgrade
+    private static String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r') len--;
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    // False at the end of the stream
+    private static boolean readFrame() throws IOException {
+        int length;
+        try {
+            length = frames.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        byte opcode = frames.readByte();
+        int roomId = frames.readInt();
+        long seq = frames.readLong();
+        byte[] payload = new byte[length - (BinaryCodec.HEADER - 4)];
+        frames.readFully(payload);
+        if (opcode == Opcode.HISTORY) {
+            handleBlock(roomId, seq, payload);
+            return true;
+        }
+        String text = new String(payload, StandardCharsets.UTF_8);
+
+        switch (opcode) {
+            case Opcode.PONG -> {}
+            case Opcode.ROOM -> {
+                currentRoomId = roomId;
+                lastSeq = -1;
+            }
+            case Opcode.AI_CHUNK -> printChunk(text);
+            case Opcode.AI_DONE -> endAnswer();
+            case Opcode.MESSAGE -> {
+                if (roomId == currentRoomId && seq > lastSeq) lastSeq = seq;
+                handleLine(text);
+            }
+            default -> handleLine(text); // TEXT reads like the text protocol's lines
+        }
+        return true;
+    }
+
     private static void listenToServer() {
-        boolean inHistory = true;
         while (running) {
             try {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if ("PONG".equals(line)) continue;
-                    // Detect join banner
-                    if (line.contains("JOINED ROOM: ")) {
-                        inHistory = true; // Start history mode
-                        System.out.println(line);
-                        continue;
-                    }
-                    // Detect end of history
-                    if (line.contains("YOU HAVE ENTERED") || line.contains("ROOM_CREATED")) {
-                        inHistory = false;
-                        System.out.println(line);
-                        continue;
+                if (binary) {
+                    while (readFrame()) {}
+                } else {
+                    String line;
+                    while ((line = readLine()) != null) {
+                        handleTextLine(line);
                     }
-                    // Print all history (including own messages) while inHistory
-                    if (inHistory) {
-                        System.out.println(line);
-                        continue;
-                    }
-                    // After history, suppress own messages
-                    if (line.startsWith(username + ": ")) continue;
-                    System.out.println(line);
                 }
                 System.out.println("[!] Lost connection to the server. Attempting to reconnect...");
             } catch (SocketTimeoutException e) {
@@ -333,6 +504,108 @@ public class Client {
 
     }
 
+    private static void handleLine(String line) {
+        if ("PONG".equals(line)) return;
+        // AI answer arriving piece by piece
+        if (line.startsWith("AI_CHUNK ")) {
+            printChunk(unescapeChunk(line.substring(9)));
+            return;
+        }
+        if ("AI_DONE".equals(line)) {
+            endAnswer();
+            return;
+        }
+        // Another line in the middle of an answer goes below it, the rest continues on a new "AI: " line
+        if (inAnswer) {
+            System.out.println();
+            inAnswer = false;
+        }
+        // Detect join banner
+        if (line.contains("JOINED ROOM: ")) {
+            inHistory = true; // Start history mode
+            System.out.println(line);
+            return;
+        }
+        // Back in the room after a reconnect, the missed messages came right before
+        if (line.startsWith("RESUMED ")) {
+            String[] parts = line.split(" ");
+            if (parts.length >= 4) {
+                lastSeq = Long.parseLong(parts[2]) - 1;
+                System.out.println("[✓] Back in " + parts[1] + ", " + parts[3] + " missed messages");
+            }
+            inHistory = false;
+            return;
+        }
+        // Detect end of history
+        if (line.contains("YOU HAVE ENTERED") || line.contains("ROOM_CREATED")) {
+            inHistory = false;
+            System.out.println(line);
+            return;
+        }
+        // Older messages requested with /history
+        if (line.startsWith("HISTORY_PAGE ")) {
+            inPage = true;
+            System.out.println("---- " + line.substring(13) + " ----");
+            return;
+        }
+        if (line.startsWith("HISTORY_END ")) {
+            inPage = false;
+            System.out.println("---- end of page ----");
+            return;
+        }
+        // Results of /search, one "[room #seq] snippet" per hit
+        if (line.startsWith("SEARCH_RESULTS ")) {
+            String[] parts = line.split(" ");
+            System.out.println("---- " + parts[parts.length - 1] + " results in " + parts[1] + " ----");
+            return;
+        }
+        if (line.startsWith("SEARCH_HIT ")) {
+            String[] parts = line.split(" ", 4);
+            System.out.println("[" + parts[1] + " #" + parts[2] + "] " + (parts.length > 3 ? parts[3] : ""));
+            return;
+        }
+        if (line.startsWith("SEARCH_END ")) {
+            System.out.println("---- end of results ----");
+            return;
+        }
+        // Print all history (including own messages) while inHistory
+        if (inHistory || inPage) {
+            System.out.println(line);
+            return;
+        }
+        // After history, suppress own messages
+        if (line.startsWith(username + ": ")) return;
+        System.out.println(line);
+    }
+
+    private static void printChunk(String text) {
+        if (!inAnswer) System.out.print("AI: ");
+        System.out.print(text);
+        System.out.flush();
+        inAnswer = true;
+    }
+
+    private static void endAnswer() {
+        if (inAnswer) System.out.println();
+        inAnswer = false;
+    }
+
+    // Reverts the server's escaping of \\, \n and \r inside AI_CHUNK
+    private static String unescapeChunk(String text) {
+        if (text.indexOf('\\') < 0) return text;
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
     private static void startHeartbeat() {
         Thread heartbeat = Thread
                 .ofVirtual()
@@ -343,12 +616,11 @@ public class Client {
                             Thread.sleep(10000); // every 10 seconds
                             ioLock.lock();
                             try {
-                                writer.println("PING");
-                                writer.flush();
+                                send(Opcode.PING, "PING");
                             } finally {
                                 ioLock.unlock();
                             }
-                        } catch (InterruptedException ignored) {}
+                        } catch (InterruptedException | IOException ignored) {}
                     }
                 });
         heartbeat.setDaemon(true);
@@ -1,59 +1,135 @@
 import javax.net.ssl.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
-import org.json.*;
 
-import ai.PromptOut;
-import ai.Prompter;
+import ai.AiDispatcher;
+import ai.ResponseCache;
+import rooms.Frame;
+import rooms.Message;
 import rooms.Session;
 import rooms.ChatRoom;
+import rooms.RoomRegistry;
+import rooms.SessionRegistry;
 import data.DataUtils;
 import data.DataParser;
+import data.SearchIndex;
 import auth.AuthenticationHandler;
+import auth.TokenStore;
+import nio.NioServer;
+import protocol.Command;
+import protocol.FrameDecoder;
+import protocol.Opcode;
+import logging.Log;
+import metrics.Meter;
+import metrics.Metrics;
 
 public class Server {
-    private static final ReentrantLock roomsLock = new ReentrantLock();
-    private static final Map<String, ChatRoom> rooms = new HashMap<>();
-    private static final Map<String, Session> activeSessions = new HashMap<>();
-    private static final Map<String, String> userTokens = new HashMap<>();
-    private static final ReentrantLock sessionLock = new ReentrantLock();
-    private static final Map<String, String> lastRoomMap = new HashMap<>();
+    private static final RoomRegistry rooms = new RoomRegistry();
+    private static final SessionRegistry sessions = new SessionRegistry();
+    private static final TokenStore tokens = new TokenStore(
+            Long.getLong("chat.token.ttlMinutes", 24 * 60) * 60_000,
+            Integer.getInteger("chat.token.max", 100_000));
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final int MAX_SEARCH_RESULTS = Integer.getInteger("chat.search.maxResults", 20);
+    private static final int SNIPPET_WIDTH = 100;
+    // Clients may switch to binary frames with UPGRADE BINARY; false keeps everyone on text
+    private static final boolean binaryEnabled = Boolean.parseBoolean(System.getProperty("chat.protocol.binary", "true"));
+    private static final boolean compressEnabled = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+    private static final ResponseCache aiCache = new ResponseCache(ResponseCache.DEFAULT_MAX_ENTRIES, ResponseCache.DEFAULT_TTL_MILLIS);
+    private static final AiDispatcher aiDispatcher = new AiDispatcher(AiDispatcher.MAX_IN_FLIGHT, aiCache);
+
+    // Users allowed to run STATS, comma separated; empty lets every logged-in user
+    private static final Set<String> statsAdmins = parseNames(System.getProperty("chat.stats.admins", ""));
+    private static final Meter accepted = Metrics.meter("connections.accepted");
+    private static final Meter closed = Metrics.meter("connections.closed");
+
+    // A SEARCH result and the room it came from
+    private record Hit(ChatRoom room, Message msg) {}
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java Server <port>");
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("nio"))) {
+            System.out.println("Usage: java Server <port> [nio]");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
 
         // Load chat rooms data from JSON
-        roomsLock.lock();
-        try {
-            DataParser data = DataUtils.loadData();
-            for (ChatRoom roomData : data.getChatrooms()) {
-                ChatRoom chatRoom = new ChatRoom(roomData.getName(), roomData.isAI(), roomData.getPrompt(), roomData.getAIContext());
-                chatRoom.setHistory(roomData.getHistory());
-                rooms.put(chatRoom.getName(), chatRoom);
-            }
-        } finally {
-            roomsLock.unlock();
+        DataParser data = DataUtils.loadData();
+        for (ChatRoom roomData : data.getChatrooms()) {
+            ChatRoom chatRoom = new ChatRoom(roomData.getName(), roomData.isAI(), roomData.getPrompt(), roomData.getAIContext());
+            chatRoom.setAICacheEnabled(roomData.isAICacheEnabled());
+            chatRoom.loadHistory();
+            rooms.register(chatRoom);
         }
 
+        // Load the credential index once, logins never read the data files
+        AuthenticationHandler.getInstance();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Log.info("AI dispatcher: {}", aiDispatcher);
+            Log.info("AI cache: {}", aiCache);
+            DataUtils.close();
+            Log.close();
+        }));
         startSessionMonitor();
+        registerGauges();
+        Metrics.startReporter();
+
+        if (args.length == 2) {
+            runNio(port);
+            return;
+        }
 
         try {
             SSLServerSocket serverSocket = AuthenticationHandler.createSSLServerSocket(port);
-            System.out.println("Server listening on port " + port);
+            Log.info("Server listening on port {}", port);
 
             while (true) {
                 SSLSocket clientSock = (SSLSocket) serverSocket.accept();
+                accepted.mark();
                 Thread.startVirtualThread(() -> handleClientConnection(clientSock));
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Server failed", e);
+        }
+    }
+
+    // Selector-based front-end: a few event loop threads instead of one blocked thread per client
+    private static void runNio(int port) {
+        int loops = Integer.getInteger("chat.nio.loops", Runtime.getRuntime().availableProcessors());
+        try {
+            NioServer server = new NioServer(port, AuthenticationHandler.createServerContext(), loops, new NioServer.Handler() {
+                @Override
+                public boolean onFirstLine(Session session, String line) {
+                    if (line.trim().isEmpty()) {
+                        Log.info("Client did not provide command");
+                        return false;
+                    }
+                    return handleAuth(session, line);
+                }
+
+                @Override
+                public void onLine(Session session, String line) {
+                    handleCommand(session, line);
+                }
+
+                @Override
+                public void onFrame(Session session, byte opcode, int roomId, String payload) {
+                    handleFrame(session, opcode, roomId, payload);
+                }
+
+                @Override
+                public void onClose(Session session) {
+                    handleDisconnect(session);
+                }
+            });
+            server.run();
+        } catch (Exception e) {
+            Log.error("Server failed", e);
         }
     }
 
@@ -61,269 +137,338 @@ public class Server {
         Session session = null;
 
         try {
+            long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
             sock.startHandshake();
+            AuthenticationHandler.recordHandshake(sock.getSession(), start, System.nanoTime() - startNanos);
 
-            session = new Session(sock);
+            session = Session.open(sock);
             String firstLine = session.in.readLine();
 
             if (firstLine == null || firstLine.trim().isEmpty()) {
-                System.out.println("Client did not provide command");
+                Log.info("Client did not provide command");
                 return;
             }
 
-            String[] loginParts = firstLine.split(" ");
+            if (!handleAuth(session, firstLine)) {
+                return;
+            }
 
-            // Processa LOGIN ou RESUME_SESSION
-            if (loginParts[0].equals("LOGIN")) {
-                if (loginParts.length < 3) {
-                    session.out.println("AUTH_FAIL invalid login format");
-                    session.close();
-                    return;
-                }
+            // --- CHAT LOOP ---
+            String line;
+            while (!session.isBinary() && (line = session.in.readLine()) != null) {
+                handleCommand(session, line);
+            }
+            if (session.isBinary()) {
+                readFrames(session);
+            }
+
+        } catch (Exception e) {
+            Log.info("Client connection failed: {}", e.getMessage());
+        } finally {
+            if (session != null) {
+                handleDisconnect(session);
+            }
+        }
+    }
+
+    // Processa LOGIN, RESUME_SESSION ou REGISTER; false closes the connection
+    static boolean handleAuth(Session session, String firstLine) {
+        String[] loginParts = firstLine.split(" ");
+
+        // Processa LOGIN ou RESUME_SESSION
+        if (loginParts[0].equals("LOGIN")) {
+            if (loginParts.length < 3) {
+                session.send("AUTH_FAIL invalid login format");
+                session.close();
+                return false;
+            }
+
+            String username = loginParts[1];
+            String password = loginParts[2];
+
+            if (!AuthenticationHandler.getInstance().authenticate(username, password)) {
+                session.send("AUTH_FAIL invalid credentials");
+                return false;
+            }
 
-                String username = loginParts[1];
-                String password = loginParts[2];
+            session.setUsername(username);
+            Log.info("User connected: {}", username);
 
-                AuthenticationHandler auth = new AuthenticationHandler("data/data.json");
-                if (!auth.authenticate(username, password)) {
-                    session.out.println("AUTH_FAIL invalid credentials");
-                    return;
+            // Gera novo token
+            String token = tokens.issue(username);
+            sessions.activate(username, session);
+
+            session.send("TOKEN:" + token);
+            session.send("AUTH_OK");
+
+        } else if (loginParts[0].equals("RESUME_SESSION")) {
+            if (loginParts.length < 2) {
+                session.send("AUTH_FAIL invalid session format");
+                return false;
+            }
+
+            String token = loginParts[1];
+            String username = tokens.resolve(token);
+
+            if (username != null) {
+                // The old connection may not have timed out yet; it is dead to the client, so it goes now
+                Session previous = sessions.get(username);
+                if (previous != null && previous != session) {
+                    previous.close();
+                    sessions.remove(previous);
                 }
 
                 session.setUsername(username);
-                System.out.println("User connected: " + username);
-
-                // Gera novo token
-                String token = UUID.randomUUID().toString();
-                sessionLock.lock();
-                try {
-                    userTokens.put(username, token);
-                    activeSessions.put(username, session);
-                } finally {
-                    sessionLock.unlock();
+                sessions.activate(username, session);
+                session.send("AUTH_OK");
+
+                Log.info("User reconnected: {}", username);
+
+                // Try to rejoin last room, with only what was missed if the client says what it saw there
+                String lastRoomName = sessions.lastRoom(username);
+                if (lastRoomName != null) {
+                    ChatRoom room = rooms.get(lastRoomName);
+                    if (room != null) {
+                        long fromSeq = resumeFrom(loginParts, room);
+                        if (fromSeq >= 0) {
+                            room.resume(session, fromSeq);
+                        } else {
+                            room.join(session);
+                        }
+                        session.setCurrentRoom(room);
+                        Log.info("{} rejoined room: {}", username, lastRoomName);
+                    }
                 }
+            } else {
+                session.send("AUTH_FAIL invalid token");
+                return false;
+            }
+        } else if (loginParts[0].equals("REGISTER")) {
+            if (loginParts.length < 3) {
+                session.send("REGISTER_FAIL invalid register format");
+                return false;
+            }
 
-                session.out.println("TOKEN:" + token);
-                session.out.flush();
-                session.out.println("AUTH_OK");
-                session.out.flush();
+            String username = loginParts[1];
+            String password = loginParts[2];
+            if (!AuthenticationHandler.getInstance().register(username, password)) {
+                Log.info("Registration failed, user already exists: {}", username);
+                session.send("REGISTER_FAIL user already exists");
+                return false;
+            }
+            session.send("REGISTER_OK");
+        } else {
+            session.send("AUTH_FAIL invalid command");
+            return false;
+        }
+
+        return true;
+    }
+
+    // RESUME_SESSION <token> <roomId> <lastSeq> (-1 for a room seen empty): the first message the client has not seen,
+    // -1 when it sent no position for this room and gets the whole join instead
+    private static long resumeFrom(String[] parts, ChatRoom room) {
+        if (parts.length < 4) return -1;
+        try {
+            if (Integer.parseInt(parts[2]) != room.getId()) return -1;
+            return Math.max(Long.parseLong(parts[3]) + 1, 0);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-            } else if (loginParts[0].equals("RESUME_SESSION")) {
-                if (loginParts.length < 2) {
-                    session.out.println("AUTH_FAIL invalid session format");
-                    return;
+    // After UPGRADE BINARY: frames straight from the socket stream, nothing left in the line reader's buffer
+    private static void readFrames(Session session) throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        FrameDecoder.Listener listener = (opcode, roomId, seq, payload, offset, length) ->
+                handleFrame(session, opcode, roomId, length == 0 ? "" : new String(payload, offset, length, StandardCharsets.UTF_8));
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        int n;
+        while ((n = session.input.read(buf.array())) >= 0) {
+            buf.position(0).limit(n);
+            decoder.feed(buf, listener);
+        }
+    }
+
+    // A binary frame from the client; SEND and PING skip the command line parsing of the text protocol
+    static void handleFrame(Session session, byte opcode, int roomId, String payload) {
+        switch (opcode) {
+            case Opcode.COMMAND -> handleCommand(session, payload);
+            case Opcode.SEND -> {
+                ChatRoom room = session.getCurrentRoom();
+                if (roomId != 0 && (room == null || room.getId() != roomId)) {
+                    session.send("ERROR You are not in that room"); // sent just before a room change
+                } else {
+                    handleMsg(session, payload);
                 }
+            }
+            case Opcode.PING -> {
+                session.updatePongTime();
+                session.send(Frame.PONG);
+            }
+            default -> session.send("ERROR Unknown frame: " + Opcode.name(opcode));
+        }
+    }
 
-                String token = loginParts[1];
-                sessionLock.lock();
-                try {
-                    String username = null;
-                    for (Map.Entry<String, String> entry : userTokens.entrySet()) {
-                        if (entry.getValue().equals(token)) {
-                            username = entry.getKey();
-                            break;
-                        }
-                    }
+    static void handleCommand(Session session, String line) {
+        String[] parts = Command.split(line);
+        String cmd = parts[0];
 
-                    if (username != null) {
-                        session.setUsername(username);
-                        activeSessions.put(username, session);
-                        session.out.println("AUTH_OK");
-
-                        System.out.println("User reconnected: " + username);
-
-                        // Try to rejoin last room
-                        String lastRoomName = lastRoomMap.get(username);
-                        if (lastRoomName != null) {
-                            roomsLock.lock();
-                            try {
-                                ChatRoom room = rooms.get(lastRoomName);
-                                if (room != null) {
-                                    room.join(session);
-                                    session.setCurrentRoom(room);
-                                    System.out.println(username + " rejoined room: " + lastRoomName);
-                                }
-                            } finally {
-                                roomsLock.unlock();
-                            }
-                        }
-                    } else {
-                        session.out.println("AUTH_FAIL invalid token");
-                    }
+        switch (cmd) {
+            case "LIST_ROOMS":
+                session.send("ROOM_LIST " + rooms.listNames());
+                break;
 
-                } finally {
-                    sessionLock.unlock();
+            case "ENTER":
+                if (parts.length < 2) {
+                    session.send("ERROR Room name required");
+                } else {
+                    handleEnter(session, parts[1]);
                 }
-            } else if (loginParts[0].equals("REGISTER")) {
-                String username = loginParts[1];
-                String password = loginParts[2];
-                AuthenticationHandler authHandler = new AuthenticationHandler("data/data.json");
-                if (!authHandler.register(username, password)) {
-                    System.out.println("Registration failed. User already exists.\n");
-                    session.out.println("REGISTER_FAIL user already exists");
+                break;
+
+            case "CREATE_ROOM":
+                if (parts.length < 2) {
+                    session.send("ERROR Room name required");
+                } else {
+                    handleCreateRoom(session, parts, false);
                 }
-                session.out.println("REGISTER_OK");
-                session.out.flush();
-            } else {
-                session.out.println("AUTH_FAIL invalid command");
-                return;
-            }
+                break;
 
-            // --- CHAT LOOP ---
-            String line;
-            while ((line = session.in.readLine()) != null) {
-                String[] parts = line.split(" ", 3);
-                String cmd = parts[0];
+            case "CREATE_AI":
+                if (parts.length < 2) {
+                    session.send("ERROR Room name required");
+                } else {
+                    handleCreateRoom(session, parts, true);
+                }
+                break;
 
-                switch (cmd) {
-                    case "LIST_ROOMS":
-                        roomsLock.lock();
-                        try {
-                            StringBuilder response = new StringBuilder("ROOM_LIST ");
-                            for (String roomName : rooms.keySet()) {
-                                response.append(roomName).append(",");
-                            }
-                            if (response.charAt(response.length() - 1) == ',') {
-                                response.setLength(response.length() - 1);
-                            }
-                            session.out.println(response.toString());
-                            session.out.flush(); // Força envio imediato
-                        } finally {
-                            roomsLock.unlock();
-                        }
-                        break;
+            case "LEAVE":
+                handleLeave(session);
+                break;
 
-                    case "ENTER":
-                        if (parts.length < 2) {
-                            session.out.println("ERROR Room name required");
-                            session.out.flush();
-                        } else {
-                            handleEnter(session, parts[1]);
-                        }
-                        break;
+            case "MSG":
+                handleMsg(session, parts.length > 2 ? parts[1] + " " + parts[2] : parts[1]);
+                break;
 
-                    case "CREATE_ROOM":
-                        if (parts.length < 2) {
-                            session.out.println("ERROR Room name required");
-                            session.out.flush();
-                        } else {
-                            handleCreateRoom(session, parts, false);
-                        }
-                        break;
+            case "HISTORY":
+                handleHistory(session, parts);
+                break;
 
-                    case "CREATE_AI":
-                        if (parts.length < 2) {
-                            session.out.println("ERROR Room name required");
-                            session.out.flush();
-                        } else {
-                            handleCreateRoom(session, parts, true);
-                        }
-                        break;
+            case "SEARCH":
+                handleSearch(session, parts);
+                break;
 
-                    case "LEAVE":
-                        handleLeave(session);
-                        break;
+            case "AI_CACHE":
+                handleAICache(session, parts);
+                break;
 
-                    case "MSG":
-                        handleMsg(session, parts.length > 2 ? parts[1] + " " + parts[2] : parts[1]);
-                        break;
+            case "STATS":
+                handleStats(session, parts);
+                break;
 
-                    case "PING":
-                        session.updatePongTime();
-                        session.out.println("PONG");
-                        session.out.flush();
-                        break;
+            case "PING":
+                session.updatePongTime();
+                session.send(Frame.PONG);
+                break;
 
+            case "UPGRADE":
+                handleUpgrade(session, parts);
+                break;
 
-                    default:
-                        session.out.println("ERROR Unknown command: " + cmd);
-                        session.out.flush();
-                }
-            }
+            case "COMPRESS":
+                handleCompress(session, parts);
+                break;
 
-        } catch (Exception e) {
-            System.out.println("Client connection failed: " + e.getMessage());
-        } finally {
-            if (session != null) {
-                session.close();
-                sessionLock.lock();
-                try {
-                    activeSessions.remove(session.getUsername());
-                    lastRoomMap.put(session.getUsername(), session.getLastRoomName()); // <-- save it here
-                } finally {
-                    sessionLock.unlock();
-                }
-            }
+
+            default:
+                session.send("ERROR Unknown command: " + cmd);
         }
     }
 
+    static void handleDisconnect(Session session) {
+        closed.mark();
+        session.close();
+        sessions.remove(session); // also remembers the last room
+    }
+
     // Métodos auxiliares para manipular salas e mensagens
-    private static ChatRoom getOrCreateRoom(String name, boolean isAI, String prompt, JSONArray context) {
-        roomsLock.lock();
-        try {
-            return rooms.computeIfAbsent(name, rn -> new ChatRoom(rn, isAI, prompt, context));
-        } finally {
-            roomsLock.unlock();
-        }
+    private static ChatRoom getOrCreateRoom(String name, boolean isAI, String prompt, int[] context) {
+        return rooms.getOrCreate(name, rn -> {
+            ChatRoom room = new ChatRoom(rn, isAI, prompt, context);
+            room.loadHistory();
+            return room;
+        });
     }
 
     private static void handleEnter(Session session, String roomName) {
         if (roomName == null || roomName.trim().isEmpty()) {
-            session.out.println("ERROR Room name required");
+            session.send("ERROR Room name required");
             return;
         }
 
-        ChatRoom newRoom = getOrCreateRoom(roomName, false, null, new JSONArray());
+        ChatRoom newRoom = getOrCreateRoom(roomName, false, null, new int[0]);
         if (session.getCurrentRoom() != null) session.getCurrentRoom().leave(session);
         newRoom.join(session);
         session.setCurrentRoom(newRoom);
-        session.out.println("YOU HAVE ENTERED " + roomName);
-        System.out.println("User " + session.getUsername() + " joined room: " + roomName);
+        session.send("YOU HAVE ENTERED " + roomName);
+        // Checked after join, so a member that misses ROOM_WARMING still gets ROOM_READY
+        if (newRoom.isWarming()) session.send("ROOM_WARMING " + roomName);
+        Log.info("User {} joined room: {}", session.getUsername(), roomName);
+    }
+
+    // UPGRADE BINARY: everything after UPGRADE_OK, both ways, is binary frames (protocol.BinaryCodec)
+    private static void handleUpgrade(Session session, String[] parts) {
+        if (parts.length < 2 || !parts[1].equals("BINARY")) {
+            session.send("ERROR Usage: UPGRADE BINARY");
+        } else if (!binaryEnabled) {
+            session.send("ERROR Binary protocol disabled");
+        } else if (session.isBinary()) {
+            session.send("ERROR Already using binary frames");
+        } else {
+            session.upgradeToBinary();
+        }
+    }
+
+    // COMPRESS DEFLATE: history replays (join, resume, HISTORY pages) come as one compressed block
+    private static void handleCompress(Session session, String[] parts) {
+        if (parts.length < 2) {
+            session.send("ERROR Usage: COMPRESS DEFLATE");
+        } else if (!parts[1].equalsIgnoreCase("DEFLATE")) {
+            session.send("ERROR Unsupported compression: " + parts[1]);
+        } else if (!compressEnabled) {
+            session.send("ERROR Compression disabled");
+        } else {
+            session.enableCompression();
+            session.send("COMPRESS_OK DEFLATE");
+        }
     }
 
     private static void handleMsg(Session session, String message) {
         if (message == null || message.trim().isEmpty()) {
-            session.out.println("ERROR Cannot send empty message");
+            session.send("ERROR Cannot send empty message");
             return;
         }
 
         ChatRoom room = session.getCurrentRoom();
         if (room == null) {
-            session.out.println("ERROR You are not in any room");
+            session.send("ERROR You are not in any room");
             return;
         }
 
         // Envia a mensagem do usuário para a sala
-        room.broadcast(session.getUsername() + ": " + message);
+        Message msg = room.broadcast(session.getUsername(), message);
 
         // Verifica se a sala é uma sala de IA
-        roomsLock.lock();
-        try {
-            if (room.isAI()) {
-                Thread.ofVirtual().start(() -> {
-                    try {
-                        Prompter prompter = new Prompter();
-                        JSONArray context = room.getAIContext();
-
-                        PromptOut aiResponse = prompter.prompt(session.getUsername() + ": " + message, context);
-                        room.setAIContext(aiResponse.getContext());
-                        DataUtils.updateContext(room.name, aiResponse.getContext());
-
-                        String aiMessage = "AI: " + aiResponse.getResponse();
-                        room.broadcast(aiMessage);
-                    } catch (Exception e) {
-                        session.out.println("ERROR AI failed to respond: " + e.getMessage());
-                    }
-                });
-            }
-        } finally {
-            roomsLock.unlock();
+        if (room.isAI() && !aiDispatcher.submit(room, session, msg.line())) {
+            session.send("ERROR AI is busy, message not sent to the model");
         }
     }
 
     private static void handleCreateRoom(Session session, String[] parts, boolean isAI) {
         if (parts.length < 2) {
-            session.out.println("ERROR Room name required");
+            session.send("ERROR Room name required");
             return;
         }
 
@@ -334,44 +479,186 @@ public class Server {
             prompt = parts[2];
         }
 
-        roomsLock.lock();
-        try {
-            if (rooms.containsKey(roomName)) {
-                session.out.println("ERROR Room already exists");
+        ChatRoom room = new ChatRoom(roomName, isAI, prompt, new int[0]);
+        room.loadHistory();
+        // The bootstrap prompt runs in the background; until it ends the room is "warming"
+        room.setWarming(prompt != null);
+        if (!rooms.register(room)) {
+            session.send("ERROR Room already exists");
+            return;
+        }
+        session.setCurrentRoom(room);
+        room.join(session);
+        session.send("ROOM_CREATED " + roomName + (isAI ? " (AI)" : ""));
+
+        DataUtils.addChatroom(roomName, isAI);
+
+        // First job of the room's AI queue, messages sent meanwhile are answered after it
+        if (prompt != null) {
+            aiDispatcher.bootstrap(room, session, prompt);
+        }
+    }
+
+    // AI_CACHE [on|off]: shows or switches the response cache of the current AI room
+    private static void handleAICache(Session session, String[] parts) {
+        ChatRoom room = session.getCurrentRoom();
+        if (room == null || !room.isAI()) {
+            session.send("ERROR You are not in an AI room");
+            return;
+        }
+        if (parts.length > 1) {
+            if (!parts[1].equals("on") && !parts[1].equals("off")) {
+                session.send("ERROR Usage: AI_CACHE [on|off]");
                 return;
             }
-            ChatRoom room = new ChatRoom(roomName, isAI, prompt, new JSONArray());
-            rooms.put(roomName, room);
-            session.setCurrentRoom(room);
-            room.join(session);
-            session.out.println("ROOM_CREATED " + roomName + (isAI ? " (AI)" : ""));
+            room.setAICacheEnabled(parts[1].equals("on"));
+            DataUtils.setAICache(room.getName(), room.isAICacheEnabled());
+        }
+        session.send("AI_CACHE " + room.getName() + " " + (room.isAICacheEnabled() ? "on" : "off") + " " + aiCache);
+    }
+
+    // STATS [sessions]: the metrics snapshot, optionally with the outbound queue of every session
+    private static void handleStats(Session session, String[] parts) {
+        if (!statsAdmins.isEmpty() && !statsAdmins.contains(session.getUsername())) {
+            session.send("ERROR STATS is restricted to administrators");
+            return;
+        }
+        session.send("STATS_BEGIN");
+        for (String line : Metrics.snapshot()) {
+            session.send(line);
+        }
+        if (parts.length > 1 && parts[1].equals("sessions")) {
+            for (Session s : sessions.all()) {
+                ChatRoom room = s.getCurrentRoom();
+                session.send("session " + s.getUsername() + " room=" + (room != null ? room.getName() : "-")
+                        + " queueDepth=" + s.getQueueDepth() + " drops=" + s.getDropCount());
+            }
+        }
+        session.send("STATS_END");
+    }
+
+    // Values that already live elsewhere, read only when a snapshot is taken
+    private static void registerGauges() {
+        Metrics.gauge("sessions.active", sessions::activeCount);
+        Metrics.gauge("sessions.outbound.maxDepth", () -> {
+            int max = 0;
+            for (Session s : sessions.all()) max = Math.max(max, s.getQueueDepth());
+            return max;
+        });
+        Metrics.gauge("sessions.outbound.drops", () -> {
+            long drops = 0;
+            for (Session s : sessions.all()) drops += s.getDropCount();
+            return drops;
+        });
+        Metrics.gauge("rooms", rooms::size);
+        Metrics.gauge("persist.queue.depth", () -> DataUtils.getPersistenceQueue().depth());
+        Metrics.gauge("persist.queue.stalls", () -> DataUtils.getPersistenceQueue().stalls());
+        Metrics.gauge("persist.failures", () -> DataUtils.getPersistenceQueue().failures());
+        Metrics.gauge("persist.interrupted", () -> DataUtils.getPersistenceQueue().interruptedPuts());
+        Metrics.gauge("ai.messages", aiDispatcher::messages);
+        Metrics.gauge("ai.calls", aiDispatcher::calls);
+        Metrics.gauge("ai.rejected", aiDispatcher::rejected);
+        Metrics.gauge("ai.failures", aiDispatcher::failures);
+        Metrics.gauge("ai.inFlight", aiDispatcher::inFlight);
+        Metrics.gauge("ai.cache.hits", aiCache::hits);
+        Metrics.gauge("ai.cache.misses", aiCache::misses);
+        Metrics.gauge("ai.cache.evictions", aiCache::evictions);
+        Metrics.gauge("log.dropped", Log::dropped);
+    }
+
+    private static Set<String> parseNames(String list) {
+        Set<String> names = new HashSet<>();
+        for (String name : list.split(",")) {
+            if (!name.isBlank()) names.add(name.trim());
+        }
+        return names;
+    }
+
+    private static void handleHistory(Session session, String[] parts) {
+        String[] range = parts.length > 2 ? parts[2].split(" ") : new String[0];
+        if (range.length < 2) {
+            session.send("ERROR Usage: HISTORY <room> <beforeSeq> <count>");
+            return;
+        }
+
+        long beforeSeq;
+        int count;
+        try {
+            beforeSeq = Long.parseLong(range[0]);
+            count = Math.min(Integer.parseInt(range[1]), MAX_HISTORY_PAGE);
+        } catch (NumberFormatException e) {
+            session.send("ERROR Invalid history range");
+            return;
+        }
+        if (beforeSeq < 0 || count <= 0) {
+            session.send("ERROR Invalid history range");
+            return;
+        }
+
+        ChatRoom room = rooms.get(parts[1]);
+        if (room == null) {
+            session.send("ERROR Room not found");
+            return;
+        }
 
-            DataUtils.addChatroom(roomName, isAI);
+        // Paging may hit the disk, so it runs without any lock held
+        ChatRoom.Page page = room.page(beforeSeq, count);
+        session.send("HISTORY_PAGE " + room.getName() + " " + page.firstSeq() + " " + page.messages().size());
+        room.replay(session, page.messages());
+        session.send("HISTORY_END " + room.getName());
+    }
+
+    // SEARCH <room|*> <terms>: the newest messages with every term, newest first, each as a snippet
+    private static void handleSearch(Session session, String[] parts) {
+        List<String> terms = parts.length > 2 ? SearchIndex.terms(parts[2]).stream().distinct().toList() : List.of();
+        if (terms.isEmpty()) {
+            session.send("ERROR Usage: SEARCH <room|*> <terms>");
+            return;
+        }
 
-            if (prompt != null) {
-                Prompter prompter = new Prompter();
-                PromptOut promptOut = prompter.prompt(prompt, new JSONArray());
-                room.setAIContext(promptOut.getContext());
+        String scope = parts[1];
+        List<ChatRoom> targets;
+        if (scope.equals("*")) {
+            targets = new ArrayList<>(rooms.all());
+        } else {
+            ChatRoom room = rooms.get(scope);
+            if (room == null) {
+                session.send("ERROR Room not found");
+                return;
+            }
+            targets = List.of(room);
+        }
 
-                DataUtils.updateContext(roomName, promptOut.getContext());
+        // Like paging, the first search of a room may read its log, so no lock is held here
+        List<Hit> hits = new ArrayList<>();
+        for (ChatRoom room : targets) {
+            for (Message msg : room.search(terms, MAX_SEARCH_RESULTS)) {
+                hits.add(new Hit(room, msg));
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            roomsLock.unlock();
         }
+        if (targets.size() > 1) {
+            hits.sort(Comparator.comparingLong((Hit h) -> h.msg().timestamp()).reversed());
+            if (hits.size() > MAX_SEARCH_RESULTS) hits = hits.subList(0, MAX_SEARCH_RESULTS);
+        }
+
+        session.send("SEARCH_RESULTS " + scope + " " + hits.size());
+        for (Hit hit : hits) {
+            session.send("SEARCH_HIT " + hit.room().getName() + " " + hit.msg().seq() + " "
+                    + SearchIndex.snippet(hit.msg().line(), terms, SNIPPET_WIDTH));
+        }
+        session.send("SEARCH_END " + scope);
     }
 
     private static void handleLeave(Session session) {
         ChatRoom room = session.getCurrentRoom();
         if (room == null) {
-            session.out.println("ERROR You’re not in any room");
+            session.send("ERROR You’re not in any room");
             return;
         }
         room.leave(session);
         session.setCurrentRoom(null);
-        session.out.println("YOU HAVE LEFT " + room.getName());
-        System.out.println("User " + session.getUsername() + " left room: " + room.getName());
+        session.send("YOU HAVE LEFT " + room.getName());
+        Log.info("User {} left room: {}", session.getUsername(), room.getName());
     }
 
     private static void startSessionMonitor() {
@@ -381,28 +668,7 @@ public class Server {
                 .unstarted(() -> {
                     final long TIMEOUT = 15000;
                     while (true) {
-                        sessionLock.lock();
-                        try {
-                            long now = System.currentTimeMillis();
-                            List<String> toRemove = new ArrayList<>();
-                            for (var entry : activeSessions.entrySet()) {
-                                Session s = entry.getValue();
-                                if (s.isClosed()) {
-                                    toRemove.add(entry.getKey());
-                                    continue;
-                                }
-                                if (now - s.getLastPongTime() > TIMEOUT) {
-                                    System.out.println("User disconnected: " + s.getUsername());
-                                    s.close();
-                                    toRemove.add(entry.getKey());
-                                }
-                            }
-                            for (String user : toRemove) {
-                                activeSessions.remove(user);
-                            }
-                        } finally {
-                            sessionLock.unlock();
-                        }
+                        sessions.sweep(TIMEOUT);
                         try {
                             Thread.sleep(5000);
                         } catch (InterruptedException ignored) {}
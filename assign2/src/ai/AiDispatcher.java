@@ -0,0 +1,270 @@
+package ai;
+
+import data.DataUtils;
+import logging.Log;
+import rooms.ChatRoom;
+import rooms.Session;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue between AI rooms and the model.
+ * Each room has its own queue with at most one worker, so prompts of a room run one after the other
+ * on the latest context instead of racing on it. Messages that pile up while the model is busy
+ * (or within coalesceMs of each other) are sent as one prompt. A global semaphore bounds the
+ * number of model calls in flight across all rooms.
+ */
+public class AiDispatcher {
+    public static final int MAX_IN_FLIGHT = Integer.getInteger("chat.ai.maxInFlight", 4);
+    public static final int MAX_BATCH = Integer.getInteger("chat.ai.coalesceMax", 8);
+    public static final int MAX_PENDING = Integer.getInteger("chat.ai.queueMax", 64);
+    public static final long COALESCE_MILLIS = Long.getLong("chat.ai.coalesceMs", 50);
+
+    private record Request(Session session, String text, boolean bootstrap) {}
+
+    private static class RoomQueue {
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<Request> pending = new ArrayDeque<>();
+        boolean running = false; // a worker is draining this queue
+    }
+
+    private final ConcurrentMap<String, RoomQueue> queues = new ConcurrentHashMap<>();
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ResponseCache cache;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public AiDispatcher(int maxInFlight, ResponseCache cache) {
+        this.maxInFlight = maxInFlight;
+        this.cache = cache;
+        this.inFlight = new Semaphore(maxInFlight, true);
+    }
+
+    /** Queues a message of an AI room for the model. Returns false if the room already has too much waiting. */
+    public boolean submit(ChatRoom room, Session session, String text) {
+        RoomQueue queue = queues.computeIfAbsent(room.getName(), k -> new RoomQueue());
+        boolean startWorker;
+        queue.lock.lock();
+        try {
+            if (queue.pending.size() >= MAX_PENDING) {
+                rejected.increment();
+                return false;
+            }
+            queue.pending.addLast(new Request(session, text, false));
+            startWorker = !queue.running;
+            queue.running = true;
+        } finally {
+            queue.lock.unlock();
+        }
+
+        messages.increment();
+        if (startWorker) {
+            startWorker(room, queue);
+        }
+        return true;
+    }
+
+    /**
+     * Queues the creation prompt of a new AI room. Its answer is not shown, only its context is kept;
+     * when it is done the room leaves the warming state and its members get ROOM_READY.
+     */
+    public void bootstrap(ChatRoom room, Session creator, String prompt) {
+        RoomQueue queue = queues.computeIfAbsent(room.getName(), k -> new RoomQueue());
+        boolean startWorker;
+        queue.lock.lock();
+        try {
+            queue.pending.addFirst(new Request(creator, prompt, true));
+            startWorker = !queue.running;
+            queue.running = true;
+        } finally {
+            queue.lock.unlock();
+        }
+        if (startWorker) {
+            startWorker(room, queue);
+        }
+    }
+
+    private void startWorker(ChatRoom room, RoomQueue queue) {
+        Thread.ofVirtual().name("ai-" + room.getName()).start(() -> drain(room, queue));
+    }
+
+    private void drain(ChatRoom room, RoomQueue queue) {
+        while (true) {
+            // Dá tempo para uma rajada de mensagens chegar e ir no mesmo prompt
+            if (COALESCE_MILLIS > 0) {
+                try {
+                    Thread.sleep(COALESCE_MILLIS);
+                } catch (InterruptedException ignored) {}
+            }
+
+            List<Request> batch = new ArrayList<>();
+            queue.lock.lock();
+            try {
+                Request head = queue.pending.pollFirst();
+                if (head == null) {
+                    queue.running = false;
+                    return;
+                }
+                batch.add(head);
+                // A bootstrap always goes alone, user messages are never mixed into it
+                while (!head.bootstrap() && batch.size() < MAX_BATCH
+                        && !queue.pending.isEmpty() && !queue.pending.peekFirst().bootstrap()) {
+                    batch.add(queue.pending.pollFirst());
+                }
+            } finally {
+                queue.lock.unlock();
+            }
+
+            if (batch.get(0).bootstrap()) {
+                warmUp(room, batch.get(0));
+            } else {
+                answer(room, batch);
+            }
+        }
+    }
+
+    private void warmUp(ChatRoom room, Request request) {
+        Prompter prompter = new Prompter();
+        try {
+            // Rooms created with the same prompt start from the same context
+            PromptOut out = cache.get(prompter.getModelName(), request.text(), new int[0]);
+            if (out == null) {
+                inFlight.acquire();
+                calls.increment();
+                try {
+                    out = prompter.prompt(request.text(), new int[0]);
+                } finally {
+                    inFlight.release();
+                }
+                cache.put(prompter.getModelName(), request.text(), new int[0], out);
+            }
+            room.setAIContext(out.getContext());
+            DataUtils.updateContext(room.getName(), out.getContext());
+        } catch (Exception e) {
+            failures.increment();
+            String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            request.session().send("ERROR AI failed to prepare room: " + reason);
+        } finally {
+            // Even without a context the room is usable
+            room.setWarming(false);
+            room.broadcastServer("ROOM_READY " + room.getName());
+        }
+    }
+
+    private void answer(ChatRoom room, List<Request> batch) {
+        StringBuilder prompt = new StringBuilder();
+        for (Request r : batch) {
+            if (!prompt.isEmpty()) prompt.append('\n');
+            prompt.append(r.text());
+        }
+
+        Prompter prompter = new Prompter();
+        int[] context = room.getAIContext();
+        boolean useCache = room.isAICacheEnabled();
+
+        // Same prompt on the same context: answered without touching the model
+        PromptOut cached = useCache ? cache.get(prompter.getModelName(), prompt.toString(), context) : null;
+        if (cached != null) {
+            room.setAIContext(cached.getContext());
+            DataUtils.updateContext(room.name, cached.getContext());
+            room.broadcast("AI", cached.getResponse());
+            return;
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            fail(batch, "interrupted");
+            return;
+        }
+        calls.increment();
+        try {
+            PromptOut aiResponse = Prompter.STREAM
+                    ? streamAnswer(room, prompter, prompt.toString(), context)
+                    : prompter.prompt(prompt.toString(), context);
+            room.setAIContext(aiResponse.getContext());
+            DataUtils.updateContext(room.name, aiResponse.getContext());
+            if (useCache) {
+                cache.put(prompter.getModelName(), prompt.toString(), context, aiResponse);
+            }
+
+            if (!Prompter.STREAM) {
+                room.broadcast("AI", aiResponse.getResponse());
+            }
+        } catch (Exception e) {
+            // HttpClient's ConnectException has no message
+            fail(batch, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    // Members see the answer grow as AI_CHUNK lines; the complete "AI: ..." message is what gets stored
+    private static PromptOut streamAnswer(ChatRoom room, Prompter prompter, String prompt, int[] context) throws IOException {
+        long start = System.nanoTime();
+        long[] firstChunk = {0};
+        try {
+            PromptOut out = prompter.promptStream(prompt, context, chunk -> {
+                if (firstChunk[0] == 0) firstChunk[0] = System.nanoTime();
+                room.broadcastChunk(chunk);
+            });
+            room.endStream("AI", out.getResponse());
+            long end = System.nanoTime();
+            if (Log.isDebugEnabled()) {
+                Log.debug("AI answer in {}: first chunk after {} ms, done after {} ms", room.getName(),
+                        firstChunk[0] == 0 ? "-" : (firstChunk[0] - start) / 1_000_000, (end - start) / 1_000_000);
+            }
+            return out;
+        } catch (IOException | RuntimeException e) {
+            room.endStream("AI", null);
+            throw e;
+        }
+    }
+
+    private void fail(List<Request> batch, String reason) {
+        failures.increment();
+        for (Request r : batch) {
+            r.session().send("ERROR AI failed to respond: " + reason);
+        }
+    }
+
+    public long messages() {
+        return messages.sum();
+    }
+
+    public long calls() {
+        return calls.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public String toString() {
+        long m = messages.sum();
+        long c = calls.sum(); // the other m - c messages were coalesced, answered from the cache or are still queued
+        return "messages=" + m + " calls=" + c + " rejected=" + rejected.sum() + " failures=" + failures.sum()
+                + " inFlight=" + (maxInFlight - inFlight.availablePermits());
+    }
+}
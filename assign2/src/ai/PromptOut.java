@@ -1,11 +1,9 @@
 package ai;
 
-import org.json.JSONArray;
-
 public class PromptOut {
     String response;
-    JSONArray context;
-    public PromptOut(String responseIn, JSONArray contextIn){
+    int[] context;
+    public PromptOut(String responseIn, int[] contextIn){
         response = responseIn;
         context = contextIn;
     }
@@ -14,7 +12,7 @@ public class PromptOut {
         return response;
     }
 
-    public JSONArray getContext() {
+    public int[] getContext() {
         return context;
     }
 }
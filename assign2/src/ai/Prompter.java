@@ -1,75 +1,145 @@
 package ai;
 
+import data.ContextStore;
+import metrics.Histogram;
+import metrics.Metrics;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class Prompter {
-    String modelName= "llama3";
-    URL url;
-    HttpURLConnection conn;
+    // Endpoint and model can point at a local stub, e.g. -Dchat.ai.url=http://localhost:11500/api/generate
+    public static final String API_URL = System.getProperty("chat.ai.url", "http://localhost:11434/api/generate");
+    public static final boolean STREAM = Boolean.parseBoolean(System.getProperty("chat.ai.stream", "true"));
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMillis(Long.getLong("chat.ai.connectTimeoutMs", 5000));
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMillis(Long.getLong("chat.ai.requestTimeoutMs", 120000));
+    private static final URI API_URI = URI.create(API_URL);
 
-    public Prompter(){}
+    // Um cliente para o servidor inteiro: keeps the connections to Ollama open between requests
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
 
-    private void openConnection() throws IOException {
-        url = new URL("http://localhost:11434/api/generate");
-        conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json; utf-8");
-        conn.setRequestProperty("Accept", "application/json");
-        conn.setDoOutput(true);
-    }
+    // Request sent to complete answer read; for streams also to the first piece of the answer
+    private static final Histogram ROUND_TRIP = Metrics.histogram("ai.roundtrip");
+    private static final Histogram FIRST_CHUNK = Metrics.histogram("ai.firstChunk");
+
+    String modelName= System.getProperty("chat.ai.model", "llama3");
 
-    private void closeConnection(){
-        conn.disconnect();
+    public Prompter(){}
+
+    public String getModelName() {
+        return modelName;
     }
 
-    public PromptOut prompt(String promptText, JSONArray context) throws IOException {
-        String jsonIputString;
-        openConnection();
+    private HttpRequest buildRequest(String promptText, int[] context, boolean stream) {
+        JSONObject body = new JSONObject()
+                .put("model", modelName)
+                .put("prompt", promptText)
+                .put("stream", stream);
 
         // Garantir que context não seja nulo
-        if (context == null) {
-            context = new JSONArray();
+        if (context != null && context.length > 0) {
+            body.put("context", new JSONArray(context));
         }
 
-        if (context.isEmpty()) {
-            jsonIputString = String.format(
-                    "{\"model\": \"%s\", \"prompt\": \"%s\", \"stream\": false }", modelName, promptText
-            );
-        } else {
-            jsonIputString = String.format(
-                    "{\"model\": \"%s\", \"prompt\": \"%s\", \"stream\": false, \"context\": %s }", modelName, promptText, context
-            );
+        return HttpRequest.newBuilder(API_URI)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json; charset=utf-8")
+                .header("Accept", stream ? "application/x-ndjson" : "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private static PromptOut parseResponse(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            throw new UncheckedIOException(new IOException("AI server returned HTTP " + response.statusCode()));
         }
+        JSONObject jsonResponse = new JSONObject(response.body());
+        return new PromptOut(jsonResponse.getString("response"), ContextStore.fromJson(jsonResponse.getJSONArray("context")));
+    }
 
-        try(OutputStream os = conn.getOutputStream()) {
-            byte[] input = jsonIputString.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
+    public PromptOut prompt(String promptText, int[] context) throws IOException {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = CLIENT.send(buildRequest(promptText, context, false),
+                    HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            ROUND_TRIP.record(System.nanoTime() - start);
+            return parseResponse(response);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("AI request interrupted");
         }
+    }
 
-        int code = conn.getResponseCode();
+    /** Non-blocking prompt; the future fails with the same errors prompt would throw. */
+    public CompletableFuture<PromptOut> promptAsync(String promptText, int[] context) {
+        long start = System.nanoTime();
+        return CLIENT.sendAsync(buildRequest(promptText, context, false), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                .thenApply(response -> {
+                    ROUND_TRIP.record(System.nanoTime() - start);
+                    return parseResponse(response);
+                });
+    }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-        StringBuilder response = new StringBuilder();
-        String line;
-        while ((line = in.readLine()) != null) {
-            response.append(line);
+    /**
+     * Same as prompt, but with "stream": true: Ollama answers with one JSON object per line,
+     * each carrying the next piece of the response, and the context only in the last one ("done": true).
+     * onChunk is called for every non-empty piece as soon as it arrives.
+     */
+    public PromptOut promptStream(String promptText, int[] context, Consumer<String> onChunk) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response;
+        try {
+            response = CLIENT.send(buildRequest(promptText, context, true), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("AI request interrupted");
         }
-        in.close();
-
-        JSONObject jsonResponse = new JSONObject(response.toString());
-        String responseText = jsonResponse.getString("response");
-        context = jsonResponse.getJSONArray("context");
 
-        closeConnection();
+        // Closing the body before the end would drop the connection instead of returning it to the pool
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            if (response.statusCode() != 200) {
+                throw new IOException("AI server returned HTTP " + response.statusCode());
+            }
 
-        return new PromptOut(responseText, context);
+            StringBuilder text = new StringBuilder();
+            int[] finalContext = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) continue;
+                JSONObject chunk = new JSONObject(line);
+                if (chunk.has("error")) {
+                    throw new IOException("AI server error: " + chunk.getString("error"));
+                }
+                String piece = chunk.optString("response", "");
+                if (!piece.isEmpty()) {
+                    if (text.isEmpty()) FIRST_CHUNK.record(System.nanoTime() - start);
+                    text.append(piece);
+                    onChunk.accept(piece);
+                }
+                if (chunk.optBoolean("done", false)) {
+                    JSONArray json = chunk.optJSONArray("context");
+                    finalContext = json == null ? null : ContextStore.fromJson(json);
+                }
+            }
+            if (finalContext == null) {
+                throw new IOException("AI stream ended without a final chunk");
+            }
+            ROUND_TRIP.record(System.nanoTime() - start);
+            return new PromptOut(text.toString(), finalContext);
+        }
     }
-}
\ No newline at end of file
+}
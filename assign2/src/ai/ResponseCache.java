@@ -0,0 +1,117 @@
+package ai;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Model answers kept by (model, prompt, context), so a repeated prompt on the same context skips the
+ * model round-trip. The prompt is the exact text sent to the model, sender included. Every answer moves
+ * the room's context on, so this only hits on an identical context: the bootstrap prompt of AI rooms
+ * created alike, and the same messages sent in the same order in those rooms.
+ * Least recently used entries go first once maxEntries is reached, and entries older than the TTL
+ * are never returned. The context is keyed by a 64-bit fingerprint plus its length; the prompt is
+ * kept whole, so a fingerprint collision alone cannot return another prompt's answer.
+ */
+public class ResponseCache {
+    public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("chat.ai.cache.maxEntries", 1024);
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong("chat.ai.cache.ttlSeconds", 600) * 1000;
+
+    private record Key(String model, String prompt, long contextFingerprint, int contextLength) {}
+
+    private record Entry(PromptOut out, long expiresAt) {}
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        // Access order: get() moves the entry to the end, the eldest is the least recently used
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() <= ResponseCache.this.maxEntries) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /** The cached answer, or null on a miss. A maxEntries of 0 disables the cache. */
+    public PromptOut get(String model, String prompt, int[] context) {
+        if (maxEntries <= 0) return null;
+        Key key = keyOf(model, prompt, context);
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+                hits.increment();
+                return entry.out();
+            }
+            if (entry != null) entries.remove(key);
+            misses.increment();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(String model, String prompt, int[] context, PromptOut out) {
+        if (maxEntries <= 0) return;
+        Key key = keyOf(model, prompt, context);
+        lock.lock();
+        try {
+            entries.put(key, new Entry(out, System.currentTimeMillis() + ttlMillis));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    private static Key keyOf(String model, String prompt, int[] context) {
+        return new Key(model, prompt, fingerprint(context), context == null ? 0 : context.length);
+    }
+
+    // FNV-1a over the token ids
+    static long fingerprint(int[] context) {
+        long h = 0xcbf29ce484222325L;
+        if (context == null) return h;
+        for (int token : context) {
+            h ^= token;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        lock.lock();
+        try {
+            size = entries.size();
+        } finally {
+            lock.unlock();
+        }
+        return "hits=" + hits.sum() + " misses=" + misses.sum() + " evictions=" + evictions.sum()
+                + " size=" + size + "/" + maxEntries;
+    }
+}
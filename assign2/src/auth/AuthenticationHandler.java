@@ -1,5 +1,10 @@
 package auth;
 
+import logging.Log;
+import metrics.Histogram;
+import metrics.Meter;
+import metrics.Metrics;
+
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -7,9 +12,9 @@ import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import javax.net.ssl.*;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import data.DataParser;
 import data.DataUtils;
 import data.User;
 
@@ -20,20 +25,37 @@ public class AuthenticationHandler {
     private static final String TRUSTSTORE_PATH = "auth/certs/server-truststore.jks";
     private static final String TRUSTSTORE_PASSWORD = "password";
 
-    private final Map<String, String> userPasswords = new HashMap<>();      // username -> passwordHash
-    private DataParser data;
-    private final String filePath;
+    // TLS 1.3 first; the handshake still settles on the best version both ends have
+    private static final String[] TLS_PROTOCOLS = System.getProperty("chat.tls.protocols", "TLSv1.3,TLSv1.2").split(",");
+    // One entry per recently connected client; TLS 1.3 resumes from stateless tickets, the timeout bounds their lifetime too
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("chat.tls.sessionCacheSize", 20480);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tls.sessionTimeoutSeconds", 24 * 60 * 60);
+
+    // Client contexts by truststore: a reconnect reuses the context and with it the cached session to resume
+    private static final ConcurrentMap<String, SSLContext> clientContexts = new ConcurrentHashMap<>();
+
+    private static final Histogram FULL_HANDSHAKE = Metrics.histogram("tls.handshake.full");
+    private static final Histogram RESUMED_HANDSHAKE = Metrics.histogram("tls.handshake.resumed");
+    private static final Meter RESUMED = Metrics.meter("tls.resumed");
+
+    private final ConcurrentMap<String, String> userPasswords = new ConcurrentHashMap<>();      // username -> passwordHash
 
-    public AuthenticationHandler(String filePath) {
-        this.filePath = filePath;
+    // Loaded once on first use and shared by every connection
+    private static class Holder {
+        static final AuthenticationHandler INSTANCE = new AuthenticationHandler();
+    }
+
+    public static AuthenticationHandler getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private AuthenticationHandler() {
         loadUsers();
     }
 
 
     private void loadUsers() {
-        data = DataUtils.loadData();
-
-        for (User user : data.getUsers()) {
+        for (User user : DataUtils.loadUsers()) {
             userPasswords.put(user.getUsername(), user.getPasswordHash());
         }
     }
@@ -47,21 +69,23 @@ public class AuthenticationHandler {
     }
 
     public boolean register(String username, String password) {
-        if (userPasswords.containsKey(username)) {
+        String passwordHash = hash(password);
+        if (userPasswords.putIfAbsent(username, passwordHash) != null) {
             return false;
         }
 
-        String passwordHash = hash(password);
-        userPasswords.put(username, passwordHash);
-
-        User newUser = new User(username, passwordHash);
-        data.getUsers().add(newUser);
-
-        DataUtils.saveData(data);
+        try {
+            DataUtils.appendUser(new User(username, passwordHash));
+        } catch (IOException e) {
+            userPasswords.remove(username, passwordHash);
+            Log.warn("Erro ao salvar utilizador: {}", e.getMessage());
+            return false;
+        }
         return true;
     }
 
-    private String hash(String password) {
+    /** SHA-256 of the password as lowercase hex, the format stored in the users file. */
+    public static String hash(String password) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             byte[] hashBytes = md.digest(password.getBytes());
@@ -81,46 +105,114 @@ public class AuthenticationHandler {
 
     public static SSLSocket connectToServerWithTruststore(String host, int port, String truststorePath, String truststorePassword) {
         try {
-            // Load truststore
-            KeyStore trustStore = KeyStore.getInstance("JKS");
-            trustStore.load(new FileInputStream(truststorePath), truststorePassword.toCharArray());
+            return connectToServer(clientContext(truststorePath, truststorePassword), host, port);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
-            // Init TrustManager
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-            tmf.init(trustStore);
+    /**
+     * Connects and handshakes with the given client context. A context that already talked to host:port
+     * holds a session to resume, which skips the certificate exchange and the key agreement.
+     */
+    public static SSLSocket connectToServer(SSLContext context, String host, int port) throws IOException {
+        SSLSocketFactory factory = context.getSocketFactory();
+
+        // Create unconnected socket and connect with timeout
+        Socket underlying = new Socket();
+        underlying.connect(new InetSocketAddress(host, port), WAIT_TIME);
+
+        // Wrap with SSL; host and port are the key of the session cache
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(
+                underlying,
+                host,
+                port,
+                true
+        );
+        sslSocket.setEnabledProtocols(TLS_PROTOCOLS);
+
+        // Start handshake
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        sslSocket.startHandshake();
+        recordHandshake(sslSocket.getSession(), start, System.nanoTime() - startNanos);
+
+        return sslSocket;
+    }
 
-            // Init SSLContext
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, tmf.getTrustManagers(), null);
+    // Loading the truststore and building the context happens once per truststore, not per connection
+    private static SSLContext clientContext(String truststorePath, String truststorePassword) {
+        return clientContexts.computeIfAbsent(truststorePath, path -> {
+            try {
+                return newClientContext(path, truststorePassword);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot load truststore " + path, e);
+            }
+        });
+    }
 
-            SSLSocketFactory factory = sslContext.getSocketFactory();
+    /**
+     * A client context of its own, with its own session cache; connectToServerWithTruststore shares one per truststore.
+     */
+    public static SSLContext newClientContext(String truststorePath, String truststorePassword) throws Exception {
+        // Load truststore
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(truststorePath)) {
+            trustStore.load(in, truststorePassword.toCharArray());
+        }
 
-            // Create unconnected socket and connect with timeout
-            Socket underlying = new Socket();
-            underlying.connect(new InetSocketAddress(host, port), WAIT_TIME);
+        // Init TrustManager
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(trustStore);
+
+        // Init SSLContext
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+        sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return sslContext;
+    }
 
-            // Wrap with SSL
-            SSLSocket sslSocket = (SSLSocket) factory.createSocket(
-                    underlying,
-                    host,
-                    port,
-                    true
-            );
+    /**
+     * Creates an SSLServerSocket that accepts connections using only server authentication.
+     */
+    public static SSLServerSocket createSSLServerSocket(int port) throws Exception {
+        SSLServerSocketFactory factory = createServerContext().getServerSocketFactory();
+        SSLServerSocket serverSocket = (SSLServerSocket) factory.createServerSocket(port);
+        serverSocket.setEnabledProtocols(TLS_PROTOCOLS);
 
-            // Start handshake
-            sslSocket.startHandshake();
+        return serverSocket;
+    }
 
-            return sslSocket;
+    public static void configure(SSLEngine engine) {
+        engine.setEnabledProtocols(TLS_PROTOCOLS);
+    }
 
-        } catch (Exception e) {
-            return null;
+    /**
+     * Records a finished handshake as full or resumed. JSSE does not say whether a session was resumed,
+     * but a resumed session keeps the creation time of the one it resumes, before this handshake started.
+     */
+    public static boolean recordHandshake(SSLSession session, long startMillis, long nanos) {
+        boolean resumed = isResumed(session, startMillis);
+        if (resumed) {
+            RESUMED.mark();
+            RESUMED_HANDSHAKE.record(nanos);
+        } else {
+            FULL_HANDSHAKE.record(nanos);
         }
+        return resumed;
+    }
+
+    public static boolean isResumed(SSLSession session, long startMillis) {
+        return session.getCreationTime() < startMillis;
     }
 
     /**
-     * Creates an SSLServerSocket that accepts connections using only server authentication.
+     * Builds the server SSLContext from the keystore and truststore, shared by the socket and NIO front-ends.
+     * The server keeps this one context for its whole life: sessions (and the keys of the tickets
+     * that let clients resume them) belong to the context.
      */
-    public static SSLServerSocket createSSLServerSocket(int port) throws Exception {
+    public static SSLContext createServerContext() throws Exception {
         // Load server keystore and truststore
         KeyStore keystore = KeyStore.getInstance("JKS");
         keystore.load(new FileInputStream(KEYSTORE_PATH), TRUSTSTORE_PASSWORD.toCharArray());
@@ -136,10 +228,8 @@ public class AuthenticationHandler {
 
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-
-        SSLServerSocketFactory factory = context.getServerSocketFactory();
-        SSLServerSocket serverSocket = (SSLServerSocket) factory.createServerSocket(port);
-
-        return serverSocket;
+        context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
     }
 }
@@ -0,0 +1,91 @@
+package auth;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session tokens indexed both ways (token -> user and user -> token), so RESUME_SESSION
+ * is a single map lookup. Each user has at most one valid token; tokens expire after a
+ * fixed TTL and the store never holds more than maxTokens users.
+ * Expiry and eviction walk the tokens in issue order, which keeps every operation amortized O(1).
+ */
+public class TokenStore {
+
+    private record Entry(String username, String token, long expiresAt) {}
+
+    private final ConcurrentMap<String, Entry> byToken = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Entry> byUser = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> issueOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final long ttlMillis;
+    private final int maxTokens;
+
+    public TokenStore(long ttlMillis, int maxTokens) {
+        this.ttlMillis = ttlMillis;
+        this.maxTokens = maxTokens;
+    }
+
+    /** Issues a new token for the user, invalidating the previous one. */
+    public String issue(String username) {
+        Entry entry = new Entry(username, UUID.randomUUID().toString(), System.currentTimeMillis() + ttlMillis);
+        Entry old = byUser.put(username, entry);
+        if (old != null) {
+            byToken.remove(old.token(), old);
+        }
+        byToken.put(entry.token(), entry);
+        issueOrder.add(entry);
+        queued.incrementAndGet();
+        evict();
+        return entry.token();
+    }
+
+    /** Returns the user owning the token, or null if it is unknown, expired or superseded. */
+    public String resolve(String token) {
+        Entry entry = byToken.get(token);
+        if (entry == null) return null;
+
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            invalidate(entry);
+            return null;
+        }
+        // A concurrent issue() for the same user may not have removed this token yet
+        if (byUser.get(entry.username()) != entry) return null;
+        return entry.username();
+    }
+
+    public int size() {
+        return byUser.size();
+    }
+
+    // Oldest tokens come first, so expired ones and the victims of the size bound are at the head.
+    // Only one thread evicts at a time, the others skip instead of waiting.
+    private void evict() {
+        if (!evictLock.tryLock()) return;
+        try {
+            long now = System.currentTimeMillis();
+            Entry head;
+            while ((head = issueOrder.peek()) != null) {
+                boolean expired = head.expiresAt() <= now;
+                boolean overCapacity = byUser.size() > maxTokens || queued.get() > 2 * maxTokens;
+                boolean superseded = byUser.get(head.username()) != head;
+                if (!expired && !overCapacity && !superseded) break;
+
+                issueOrder.poll();
+                queued.decrementAndGet();
+                invalidate(head);
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private void invalidate(Entry entry) {
+        byUser.remove(entry.username(), entry);
+        byToken.remove(entry.token(), entry);
+    }
+}
@@ -0,0 +1,124 @@
+package bench;
+
+import ai.Prompter;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Latency of AI calls with and without connection reuse, against a local stub (bench.OllamaStub).
+ * "unpooled" is the old Prompter: a new HttpURLConnection per request, disconnected afterwards.
+ * "pooled" goes through Prompter.prompt on the shared HttpClient, "async" through Prompter.promptAsync.
+ * Prints percentiles and a histogram (count per latency bucket) per mode as CSV.
+ *
+ * Usage: java -Dchat.ai.url=http://localhost:11500/api/generate -cp .:lib/json-20250107.jar
+ *        bench.AiLatencyBench [requests] [concurrency]
+ * Start the stub with no delays to see only the per-request overhead: bench.OllamaStub 11500 0 0 5
+ */
+public class AiLatencyBench {
+    private static final long[] BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500};
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        StringBuilder header = new StringBuilder("mode,requests,concurrency,failed,p50_ms,p90_ms,p99_ms,max_ms");
+        for (long b : BUCKETS_MS) header.append(",lt").append(b).append("ms");
+        header.append(",ge").append(BUCKETS_MS[BUCKETS_MS.length - 1]).append("ms");
+        System.out.println(header);
+
+        for (String mode : new String[]{"unpooled", "pooled", "async"}) {
+            run(mode, requests / 10, concurrency, false); // warm-up
+            run(mode, requests, concurrency, true);
+        }
+    }
+
+    private static void run(String mode, int requests, int concurrency, boolean print) throws Exception {
+        Prompter prompter = new Prompter();
+        Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        int[] failed = {0};
+
+        for (int i = 0; i < requests; i++) {
+            String prompt = "bench " + i;
+            inFlight.acquire();
+            long start = System.nanoTime();
+            if (mode.equals("async")) {
+                prompter.promptAsync(prompt, new int[0]).whenComplete((out, e) -> {
+                    finish(e == null, start, latencies, failed);
+                    inFlight.release();
+                    done.countDown();
+                });
+            } else {
+                Thread.startVirtualThread(() -> {
+                    boolean ok = false;
+                    try {
+                        if (mode.equals("pooled")) {
+                            prompter.prompt(prompt, new int[0]);
+                        } else {
+                            unpooledPrompt(prompt);
+                        }
+                        ok = true;
+                    } catch (Exception ignored) {
+                    } finally {
+                        finish(ok, start, latencies, failed);
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        done.await();
+        if (!print) return;
+
+        long[] sorted = ConnectionLoad.toSortedArray(latencies);
+        long[] counts = new long[BUCKETS_MS.length + 1];
+        for (long nanos : sorted) {
+            int b = 0;
+            while (b < BUCKETS_MS.length && nanos >= BUCKETS_MS[b] * 1_000_000) b++;
+            counts[b]++;
+        }
+        StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%s,%d,%d,%d,%.2f,%.2f,%.2f,%.2f",
+                mode, requests, concurrency, failed[0],
+                ConnectionLoad.percentile(sorted, 50), ConnectionLoad.percentile(sorted, 90),
+                ConnectionLoad.percentile(sorted, 99), ConnectionLoad.percentile(sorted, 100)));
+        for (long c : counts) row.append(',').append(c);
+        System.out.println(row);
+    }
+
+    private static void finish(boolean ok, long start, Queue<Long> latencies, int[] failed) {
+        if (ok) {
+            latencies.add(System.nanoTime() - start);
+        } else {
+            synchronized (failed) {
+                failed[0]++;
+            }
+        }
+    }
+
+    // The request as the old Prompter made it: fresh connection, disconnected at the end
+    private static void unpooledPrompt(String prompt) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) URI.create(Prompter.API_URL).toURL().openConnection();
+        try {
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json; utf-8");
+            conn.setRequestProperty("Accept", "application/json");
+            conn.setDoOutput(true);
+            String body = new JSONObject().put("model", "llama3").put("prompt", prompt).put("stream", false).toString();
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            try (InputStream in = conn.getInputStream()) {
+                new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8)).getString("response");
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
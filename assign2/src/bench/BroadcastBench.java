@@ -0,0 +1,108 @@
+package bench;
+
+import rooms.Frame;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Cost of delivering one broadcast to every member of a room, per member count.
+ * "println" is the old path: each member's PrintWriter encodes the String again.
+ * "frame" is the current one: the message is encoded once into a Frame and every member's
+ * buffered stream copies the same bytes. Sinks discard the bytes but count them, so only
+ * the fan-out itself is measured (no sockets, no persistence).
+ * Allocations are read from the JVM's per-thread allocation counter.
+ *
+ * Usage: java -cp . bench.BroadcastBench [iterations] [messageLength]
+ */
+public class BroadcastBench {
+    private static final int[] MEMBERS = {10, 100, 1000};
+
+    private static class CountingStream extends OutputStream {
+        long bytes = 0;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        // Non-ASCII text, so the encoder has real work to do
+        String msg = "user: " + "olá mundo ".repeat(length / 10 + 1).substring(0, length);
+
+        System.out.println("mode,members,bytes_per_broadcast,alloc_bytes_per_broadcast,ns_per_broadcast");
+        for (int members : MEMBERS) {
+            int iters = Math.max(10, iterations * 10 / members);
+            run("println", members, iters, msg);
+            run("frame", members, iters, msg);
+        }
+    }
+
+    private static void run(String mode, int members, int iterations, String msg) {
+        CountingStream[] sinks = new CountingStream[members];
+        PrintWriter[] writers = new PrintWriter[members];
+        OutputStream[] streams = new OutputStream[members];
+        for (int i = 0; i < members; i++) {
+            sinks[i] = new CountingStream();
+            writers[i] = new PrintWriter(new OutputStreamWriter(sinks[i], StandardCharsets.UTF_8));
+            streams[i] = new BufferedOutputStream(sinks[i]);
+        }
+        boolean frame = mode.equals("frame");
+
+        // Warm-up, then measure
+        for (int i = 0; i < iterations; i++) {
+            broadcast(frame, msg, writers, streams);
+        }
+        long bytesBefore = totalBytes(sinks);
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            broadcast(frame, msg, writers, streams);
+        }
+        long elapsed = System.nanoTime() - start;
+        long alloc = allocatedBytes() - allocBefore;
+        long bytes = totalBytes(sinks) - bytesBefore;
+
+        System.out.printf(Locale.ROOT, "%s,%d,%d,%d,%d%n", mode, members,
+                bytes / iterations, alloc / iterations, elapsed / iterations);
+    }
+
+    private static void broadcast(boolean frame, String msg, PrintWriter[] writers, OutputStream[] streams) {
+        if (frame) {
+            Frame f = Frame.of(msg);
+            try {
+                for (OutputStream out : streams) {
+                    f.writeTo(out);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            for (PrintWriter out : writers) {
+                out.println(msg);
+                out.flush();
+            }
+        }
+    }
+
+    private static long totalBytes(CountingStream[] sinks) {
+        long total = 0;
+        for (CountingStream s : sinks) total += s.bytes;
+        return total;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,124 @@
+package bench;
+
+import auth.AuthenticationHandler;
+
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds many mostly idle client connections against a running server, to compare the
+ * blocking front-end (java Server <port>) with the selector one (java Server <port> nio).
+ * Every connection logs in, then only sends a PING every pingInterval seconds, like the real Client.
+ * Prints one CSV line with connect time and PING round-trip percentiles; watch the server's
+ * threads and heap (e.g. jcmd <pid> GC.heap_info) while it runs.
+ *
+ * Usage: java -cp .:lib/json-20250107.jar bench.ConnectionLoad <host> <port> <user> <pass> <connections>
+ *        [holdSeconds] [pingIntervalSeconds] [label]
+ */
+public class ConnectionLoad {
+    private static final String TRUSTSTORE_PATH = "./auth/certs/server-truststore.jks";
+    private static final String TRUSTSTORE_PASSWORD = "password";
+    private static final int MAX_PARALLEL_HANDSHAKES = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: java bench.ConnectionLoad <host> <port> <user> <pass> <connections> [holdSeconds] [pingIntervalSeconds] [label]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String user = args[2];
+        String pass = args[3];
+        int connections = Integer.parseInt(args[4]);
+        long holdMillis = (args.length > 5 ? Long.parseLong(args[5]) : 30) * 1000;
+        long pingMillis = (args.length > 6 ? Long.parseLong(args[6]) : 10) * 1000;
+        String label = args.length > 7 ? args[7] : "server";
+
+        Semaphore handshakes = new Semaphore(MAX_PARALLEL_HANDSHAKES);
+        Queue<Long> connectNanos = new ConcurrentLinkedQueue<>();
+        Queue<Long> pingNanos = new ConcurrentLinkedQueue<>();
+        AtomicInteger established = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(connections);
+
+        for (int i = 0; i < connections; i++) {
+            Thread.startVirtualThread(() -> {
+                SSLSocket socket = null;
+                try {
+                    PrintWriter out;
+                    BufferedReader in;
+                    handshakes.acquire();
+                    long start = System.nanoTime();
+                    try {
+                        socket = AuthenticationHandler.connectToServerWithTruststore(host, port, TRUSTSTORE_PATH, TRUSTSTORE_PASSWORD);
+                        if (socket == null) throw new IOException("connect failed");
+                        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        out.println("LOGIN " + user + " " + pass);
+                        if (!awaitLine(in, "AUTH_OK")) throw new IOException("login failed");
+                        connectNanos.add(System.nanoTime() - start);
+                        established.incrementAndGet();
+                    } finally {
+                        handshakes.release();
+                    }
+
+                    // Every connection is held for the same time once it is up
+                    long deadline = System.currentTimeMillis() + holdMillis;
+                    // Spread the pings so the server does not see them in lockstep
+                    Thread.sleep((long) (Math.random() * pingMillis));
+                    while (System.currentTimeMillis() < deadline) {
+                        long ping = System.nanoTime();
+                        out.println("PING");
+                        if (!awaitLine(in, "PONG")) throw new IOException("connection lost");
+                        pingNanos.add(System.nanoTime() - ping);
+                        Thread.sleep(Math.min(pingMillis, Math.max(0, deadline - System.currentTimeMillis())));
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {}
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        done.await();
+        long[] connect = toSortedArray(connectNanos);
+        long[] ping = toSortedArray(pingNanos);
+        System.out.println("label,connections,established,failed,connect_p50_ms,connect_p99_ms,ping_p50_ms,ping_p99_ms,pings");
+        System.out.printf(Locale.ROOT, "%s,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%d%n", label, connections, established.get(), failed.get(),
+                percentile(connect, 50), percentile(connect, 99), percentile(ping, 50), percentile(ping, 99), ping.length);
+    }
+
+    private static boolean awaitLine(BufferedReader in, String expected) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(expected)) return true;
+            if (line.startsWith("AUTH_FAIL")) return false;
+        }
+        return false;
+    }
+
+    static long[] toSortedArray(Collection<Long> values) {
+        long[] arr = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(arr);
+        return arr;
+    }
+
+    // Percentile of sorted nanosecond samples, in milliseconds
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1e6;
+    }
+}
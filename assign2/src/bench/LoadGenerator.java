@@ -0,0 +1,234 @@
+package bench;
+
+import auth.AuthenticationHandler;
+import metrics.Histogram;
+
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless chat load: N clients on virtual threads register (or log in if the user exists), enter one
+ * of M rooms ("load-0".."load-M-1", round robin) and send messages at a fixed rate for a while.
+ * Every message carries the sender's System.nanoTime(); all clients run in this JVM, so any member
+ * that receives it measures the end-to-end delivery latency (send, server, broadcast, receive).
+ * Prints one CSV line: throughput, latency percentiles and connection setup time.
+ *
+ * Usage: java -cp .:lib/json-20250107.jar bench.LoadGenerator <host> <port> <clients> <rooms>
+ *        <messagesPerSecondPerClient> <durationSeconds> [userPrefix] [password] [label]
+ */
+public class LoadGenerator {
+    private static final String TRUSTSTORE_PATH = "./auth/certs/server-truststore.jks";
+    private static final String TRUSTSTORE_PASSWORD = "password";
+    private static final int MAX_PARALLEL_HANDSHAKES = 200;
+    private static final long PING_NANOS = TimeUnit.SECONDS.toNanos(5); // the server drops clients silent for 15 s
+    private static final long DRAIN_MILLIS = 2000;
+    private static final String TAG = "LT ";
+
+    private final String host;
+    private final int port;
+    private final Histogram latency = new Histogram();
+    private final Queue<Long> connectNanos = new ConcurrentLinkedQueue<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean sending = true;
+
+    private LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            System.out.println("Usage: java bench.LoadGenerator <host> <port> <clients> <rooms> <messagesPerSecondPerClient> <durationSeconds> [userPrefix] [password] [label]");
+            return;
+        }
+        int clients = Integer.parseInt(args[2]);
+        int rooms = Integer.parseInt(args[3]);
+        double rate = Double.parseDouble(args[4]);
+        long durationMillis = (long) (Double.parseDouble(args[5]) * 1000);
+        String prefix = args.length > 6 ? args[6] : "load";
+        String password = args.length > 7 ? args[7] : "load";
+        String label = args.length > 8 ? args[8] : "server";
+
+        new LoadGenerator(args[0], Integer.parseInt(args[1]))
+                .run(clients, rooms, rate, durationMillis, prefix, password, label);
+    }
+
+    private void run(int clients, int rooms, double rate, long durationMillis, String prefix, String password, String label)
+            throws InterruptedException {
+        Semaphore handshakes = new Semaphore(MAX_PARALLEL_HANDSHAKES);
+        CountDownLatch ready = new CountDownLatch(clients);  // connected and in their room, or failed
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        int[] roomSizes = new int[rooms];
+        for (int i = 0; i < clients; i++) roomSizes[i % rooms]++;
+
+        for (int i = 0; i < clients; i++) {
+            String user = prefix + i;
+            String room = "load-" + (i % rooms);
+            Thread.startVirtualThread(() -> {
+                AtomicBoolean counted = new AtomicBoolean();
+                Runnable markReady = () -> {
+                    if (counted.compareAndSet(false, true)) ready.countDown();
+                };
+                try {
+                    client(user, password, room, rate, handshakes, markReady, start);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    markReady.run(); // a client that failed before its room must not hold the others
+                    done.countDown();
+                }
+            });
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(durationMillis);
+        sending = false;
+        long elapsed = System.nanoTime() - begin;
+        Thread.sleep(DRAIN_MILLIS);
+        done.await();
+
+        // Every message goes to all members of the sender's room, the sender included
+        long expected = 0;
+        double perClient = (double) sent.sum() / Math.max(1, clients - failed.get());
+        for (int size : roomSizes) expected += Math.round(perClient * size * size);
+        long[] connect = ConnectionLoad.toSortedArray(connectNanos);
+        double seconds = elapsed / 1e9;
+
+        System.out.println("label,clients,rooms,rate_per_client,duration_s,failed,sent,delivered,expected,skipped,"
+                + "send_per_s,deliver_per_s,lat_p50_ms,lat_p99_ms,lat_p999_ms,lat_max_ms,connect_p50_ms,connect_p99_ms");
+        System.out.printf(Locale.ROOT, "%s,%d,%d,%.1f,%.1f,%d,%d,%d,%d,%d,%.1f,%.1f,%.2f,%.2f,%.2f,%.2f,%.2f,%.2f%n",
+                label, clients, rooms, rate, seconds, failed.get(), sent.sum(), delivered.sum(), expected, skipped.sum(),
+                sent.sum() / seconds, delivered.sum() / seconds,
+                latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6, latency.max() / 1e6,
+                ConnectionLoad.percentile(connect, 50), ConnectionLoad.percentile(connect, 99));
+    }
+
+    private void client(String user, String password, String room, double rate, Semaphore handshakes,
+                        Runnable markReady, CountDownLatch start) throws Exception {
+        SSLSocket socket = null;
+        try {
+            PrintWriter out;
+            BufferedReader in;
+            handshakes.acquire();
+            try {
+                register(user, password);
+                long begin = System.nanoTime();
+                socket = connect();
+                out = writer(socket);
+                in = reader(socket);
+                out.println("LOGIN " + user + " " + password);
+                if (!awaitLine(in, "AUTH_OK")) throw new IOException("login failed");
+                connectNanos.add(System.nanoTime() - begin);
+            } finally {
+                handshakes.release();
+            }
+
+            out.println("ENTER " + room);
+            if (!awaitLine(in, "YOU HAVE ENTERED " + room)) throw new IOException("enter failed");
+
+            Thread receiver = Thread.startVirtualThread(() -> receive(in));
+            markReady.run();
+            start.await();
+            send(out, user, rate);
+
+            // Lets the last messages arrive before the connection goes away
+            receiver.join(DRAIN_MILLIS);
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // Fixed schedule: a late send does not push the next ones back, so a slow server is not hidden
+    private void send(PrintWriter out, String user, double rate) {
+        long interval = (long) (1e9 / rate);
+        long next = System.nanoTime() + (long) (Math.random() * interval); // clients out of phase
+        long nextPing = System.nanoTime() + PING_NANOS;
+        while (sending) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            out.println("MSG " + TAG + user + " " + System.nanoTime());
+            sent.increment();
+            next += interval;
+            if (now >= nextPing) {
+                out.println("PING");
+                nextPing = now + PING_NANOS;
+            }
+        }
+    }
+
+    // Lines look like "<sender>: LT <sender> <nanoTime>"
+    private void receive(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tag = line.indexOf(": " + TAG);
+                if (tag >= 0) {
+                    long sentAt = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                    latency.record(System.nanoTime() - sentAt);
+                    delivered.increment();
+                } else if (line.startsWith("[") && line.endsWith(" messages skipped]")) {
+                    skipped.add(Long.parseLong(line.substring(1, line.indexOf(' '))));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+            // socket closed at the end of the run
+        }
+    }
+
+    // Best effort: an existing user just logs in
+    private void register(String user, String password) throws IOException {
+        SSLSocket socket = connect();
+        try {
+            writer(socket).println("REGISTER " + user + " " + password);
+            reader(socket).readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private SSLSocket connect() throws IOException {
+        SSLSocket socket = AuthenticationHandler.connectToServerWithTruststore(host, port, TRUSTSTORE_PATH, TRUSTSTORE_PASSWORD);
+        if (socket == null) throw new IOException("connect failed");
+        return socket;
+    }
+
+    private static PrintWriter writer(SSLSocket socket) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    private static BufferedReader reader(SSLSocket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static boolean awaitLine(BufferedReader in, String expected) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(expected)) return true;
+            if (line.startsWith("AUTH_FAIL") || line.startsWith("ERROR")) return false;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import logging.Log;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Time the calling threads spend per log statement: System.out.println against Log.info,
+ * and a disabled Log.debug. Run with stdout redirected, the numbers are the caller's cost, not the
+ * console's. Log.info is run with -Dchat.log.maxPerSecond=0 unless the rate limiter is to be measured.
+ *
+ * Usage: java -Dchat.log.maxPerSecond=0 -cp . bench.LogBench [threads] [statementsPerThread] > /dev/null
+ * Results go to stderr as CSV.
+ */
+public class LogBench {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        System.err.println("mode,threads,statements,ns_per_statement");
+        for (String mode : new String[]{"println", "log", "disabled"}) {
+            run(mode, threads, perThread / 10); // warm-up
+            long nanos = run(mode, threads, perThread);
+            long statements = (long) threads * perThread;
+            System.err.println(String.format(Locale.ROOT, "%s,%d,%d,%.1f",
+                    mode, threads, statements, (double) nanos / statements));
+        }
+        System.err.println("dropped_by_log=" + Log.dropped());
+        Log.close();
+    }
+
+    // Wall time until every thread is done, so time lost waiting on the others (stdout's lock) counts
+    private static long run(String mode, int threads, int perThread) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String user = "user" + id;
+                for (int i = 0; i < perThread; i++) {
+                    switch (mode) {
+                        case "println" -> System.out.println("User " + user + " joined room: geral");
+                        case "log" -> Log.info("User {} joined room: {}", user, "geral");
+                        default -> Log.debug("User {} joined room: {}", user, "geral");
+                    }
+                }
+                done.countDown();
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for Ollama's /api/generate, so AI rooms can be tried without a model.
+ * Answers with a fixed number of word tokens: the first after firstTokenMs, the others every tokenMs.
+ * With "stream": true the tokens go out as NDJSON chunks like Ollama does, otherwise as one JSON
+ * object once the whole answer is "generated". The returned context is the request's plus one entry.
+ *
+ * Usage: java -cp .:lib/json-20250107.jar bench.OllamaStub [port] [firstTokenMs] [tokenMs] [tokens]
+ * then start the server with -Dchat.ai.url=http://localhost:<port>/api/generate
+ */
+public class OllamaStub {
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 11500;
+        long firstTokenMs = args.length > 1 ? Long.parseLong(args[1]) : 800;
+        long tokenMs = args.length > 2 ? Long.parseLong(args[2]) : 40;
+        int tokens = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        // Otherwise Nagle + delayed ACK add ~40 ms to every small response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/generate", exchange -> {
+            try {
+                handle(exchange, firstTokenMs, tokenMs, tokens);
+            } catch (Exception e) {
+                System.out.println("Stub request failed: " + e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        System.out.println("Ollama stub listening on port " + port + " (first token " + firstTokenMs
+                + " ms, then " + tokenMs + " ms x " + tokens + ")");
+    }
+
+    private static void handle(HttpExchange exchange, long firstTokenMs, long tokenMs, int tokens) throws Exception {
+        JSONObject request = new JSONObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        boolean stream = request.optBoolean("stream", true);
+        JSONArray context = request.optJSONArray("context");
+        if (context == null) context = new JSONArray();
+        context.put(context.length() + 1);
+
+        String prompt = request.optString("prompt", "");
+        String[] words = ("You said \"" + prompt + "\".").split(" ");
+
+        exchange.getResponseHeaders().set("Content-Type", stream ? "application/x-ndjson" : "application/json");
+        OutputStream out = exchange.getResponseBody();
+        if (stream) exchange.sendResponseHeaders(200, 0); // chunked, one chunk per token
+
+        StringBuilder full = new StringBuilder();
+        Thread.sleep(firstTokenMs);
+        for (int i = 0; i < tokens; i++) {
+            if (i > 0) Thread.sleep(tokenMs);
+            String token = (i == 0 ? "" : " ") + (i < words.length ? words[i] : "lorem" + i);
+            full.append(token);
+            if (stream) {
+                writeLine(out, new JSONObject().put("model", request.optString("model")).put("response", token).put("done", false));
+            }
+        }
+
+        JSONObject last = new JSONObject()
+                .put("model", request.optString("model"))
+                .put("response", stream ? "" : full.toString())
+                .put("done", true)
+                .put("context", context);
+        if (stream) {
+            writeLine(out, last);
+        } else {
+            // Known length and a single write, like Ollama's non-streaming answer
+            byte[] body = (last + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            out.write(body);
+        }
+    }
+
+    private static void writeLine(OutputStream out, JSONObject json) throws IOException {
+        out.write((json + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,119 @@
+package bench;
+
+import auth.AuthenticationHandler;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * All clients reconnecting at once, as after a network hiccup.
+ * "fresh" is the old client path: truststore loaded and SSLContext built on every connect, so every
+ * handshake is a full one. "cached" is a client that keeps its context, as Client does through
+ * AuthenticationHandler.connectToServerWithTruststore, and resumes the session of its previous connection.
+ * Each simulated client gets a context of its own: a real client is a process with its own session
+ * cache, and a TLS 1.3 ticket is only used once, so clients sharing one cache would mostly miss.
+ * Prints handshake and login time percentiles and how many handshakes were resumed, as CSV.
+ * The server's STATS shows the same split (tls.handshake.full / tls.handshake.resumed).
+ *
+ * Usage: java -cp .:lib/json-20250107.jar bench.ReconnectStorm <host> <port> <user> <pass> <clients> [rounds]
+ */
+public class ReconnectStorm {
+    private static final String TRUSTSTORE_PATH = "./auth/certs/server-truststore.jks";
+    private static final String TRUSTSTORE_PASSWORD = "password";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: java bench.ReconnectStorm <host> <port> <user> <pass> <clients> [rounds]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String user = args[2];
+        String pass = args[3];
+        int clients = Integer.parseInt(args[4]);
+        int rounds = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+
+        SSLContext[] contexts = new SSLContext[clients];
+        for (int i = 0; i < clients; i++) {
+            contexts[i] = AuthenticationHandler.newClientContext(TRUSTSTORE_PATH, TRUSTSTORE_PASSWORD);
+        }
+
+        // The clients were connected before the storm: each has a session to resume
+        storm("seed", 0, host, port, user, pass, contexts);
+
+        System.out.println("mode,round,clients,failed,resumed,handshake_p50_ms,handshake_p99_ms,login_p50_ms,login_p99_ms");
+        for (int round = 1; round <= rounds; round++) {
+            for (String mode : new String[]{"fresh", "cached"}) {
+                storm(mode, round, host, port, user, pass, contexts);
+            }
+        }
+    }
+
+    private static void storm(String mode, int round, String host, int port, String user, String pass, SSLContext[] contexts)
+            throws InterruptedException {
+        int clients = contexts.length;
+        Queue<Long> handshakes = new ConcurrentLinkedQueue<>();
+        Queue<Long> logins = new ConcurrentLinkedQueue<>();
+        AtomicInteger resumed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            SSLContext context = contexts[i];
+            Thread.startVirtualThread(() -> {
+                SSLSocket socket = null;
+                try {
+                    go.await();
+                    long start = System.currentTimeMillis();
+                    long begin = System.nanoTime();
+                    SSLContext c = mode.equals("fresh")
+                            ? AuthenticationHandler.newClientContext(TRUSTSTORE_PATH, TRUSTSTORE_PASSWORD)
+                            : context;
+                    socket = AuthenticationHandler.connectToServer(c, host, port);
+                    handshakes.add(System.nanoTime() - begin);
+                    if (AuthenticationHandler.isResumed(socket.getSession(), start)) resumed.incrementAndGet();
+                    login(socket, user, pass);
+                    logins.add(System.nanoTime() - begin);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {}
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        go.countDown();
+        done.await();
+        if (mode.equals("seed")) return;
+
+        long[] hs = ConnectionLoad.toSortedArray(handshakes);
+        long[] ls = ConnectionLoad.toSortedArray(logins);
+        System.out.printf(Locale.ROOT, "%s,%d,%d,%d,%d,%.2f,%.2f,%.2f,%.2f%n", mode, round, clients, failed.get(), resumed.get(),
+                ConnectionLoad.percentile(hs, 50), ConnectionLoad.percentile(hs, 99),
+                ConnectionLoad.percentile(ls, 50), ConnectionLoad.percentile(ls, 99));
+    }
+
+    // Reading AUTH_OK also takes in the session ticket the server sends after a TLS 1.3 handshake
+    private static void login(SSLSocket socket, String user, String pass) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out.println("LOGIN " + user + " " + pass);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("AUTH_OK")) return;
+            if (line.startsWith("AUTH_FAIL")) throw new IOException(line);
+        }
+        throw new IOException("connection closed before AUTH_OK");
+    }
+}
@@ -0,0 +1,189 @@
+package bench;
+
+import rooms.ChatRoom;
+import rooms.RoomRegistry;
+import rooms.Session;
+import rooms.SessionRegistry;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Contention benchmark for the room and session registries.
+ * Every simulated client runs on a virtual thread, like a real connection, and loops over
+ * the operations the server does per command: room lookups (ENTER, HISTORY), LIST_ROOMS,
+ * room creation and session login/logout. The old HashMap + global lock layout is measured
+ * next to the concurrent registries for the same number of clients.
+ *
+ * Usage: java -cp .:lib/json-20250107.jar bench.RegistryContention [durationMs] [maxClients]
+ */
+public class RegistryContention {
+    private static final int ROOMS = 100;
+    private static final String[] NAMES = new String[ROOMS * 2];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            NAMES[i] = "room" + i;
+        }
+    }
+
+    private interface Target {
+        ChatRoom get(String name);
+        String list();
+        ChatRoom getOrCreate(String name);
+        void login(String username, Session session);
+        void logout(String username, Session session);
+    }
+
+    // The layout Server had before the registries: plain maps behind two global locks
+    private static class LockedTarget implements Target {
+        private final ReentrantLock roomsLock = new ReentrantLock();
+        private final ReentrantLock sessionLock = new ReentrantLock();
+        private final Map<String, ChatRoom> rooms = new HashMap<>();
+        private final Map<String, Session> activeSessions = new HashMap<>();
+
+        public ChatRoom get(String name) {
+            roomsLock.lock();
+            try {
+                return rooms.get(name);
+            } finally {
+                roomsLock.unlock();
+            }
+        }
+
+        public String list() {
+            roomsLock.lock();
+            try {
+                return String.join(",", rooms.keySet());
+            } finally {
+                roomsLock.unlock();
+            }
+        }
+
+        public ChatRoom getOrCreate(String name) {
+            roomsLock.lock();
+            try {
+                return rooms.computeIfAbsent(name, RegistryContention::newRoom);
+            } finally {
+                roomsLock.unlock();
+            }
+        }
+
+        public void login(String username, Session session) {
+            sessionLock.lock();
+            try {
+                activeSessions.put(username, session);
+            } finally {
+                sessionLock.unlock();
+            }
+        }
+
+        public void logout(String username, Session session) {
+            sessionLock.lock();
+            try {
+                activeSessions.remove(username);
+            } finally {
+                sessionLock.unlock();
+            }
+        }
+    }
+
+    private static class RegistryTarget implements Target {
+        private final RoomRegistry rooms = new RoomRegistry();
+        private final SessionRegistry sessions = new SessionRegistry();
+
+        public ChatRoom get(String name) {
+            return rooms.get(name);
+        }
+
+        public String list() {
+            return rooms.listNames();
+        }
+
+        public ChatRoom getOrCreate(String name) {
+            return rooms.getOrCreate(name, RegistryContention::newRoom);
+        }
+
+        public void login(String username, Session session) {
+            sessions.activate(username, session);
+        }
+
+        public void logout(String username, Session session) {
+            sessions.remove(session);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long duration = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int maxClients = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        System.out.println("clients,locked_ops_per_sec,registry_ops_per_sec,speedup");
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            double locked = run(new LockedTarget(), clients, duration);
+            double registry = run(new RegistryTarget(), clients, duration);
+            System.out.printf(Locale.ROOT, "%d,%.0f,%.0f,%.2f%n", clients, locked, registry, registry / locked);
+        }
+    }
+
+    private static double run(Target target, int clients, long duration) throws InterruptedException {
+        for (int i = 0; i < ROOMS; i++) {
+            target.getOrCreate(NAMES[i]);
+        }
+
+        LongAdder ops = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        for (int c = 0; c < clients; c++) {
+            String username = "user" + c;
+            threads.add(Thread.ofVirtual().unstarted(() -> {
+                Session session = newSession(username);
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long local = 0;
+                while (!stop.get()) {
+                    int op = rnd.nextInt(100);
+                    if (op < 80) {
+                        target.get(NAMES[rnd.nextInt(ROOMS)]);
+                    } else if (op < 82) {
+                        target.list();
+                    } else if (op < 85) {
+                        target.getOrCreate(NAMES[rnd.nextInt(NAMES.length)]);
+                    } else if (op < 95) {
+                        target.login(username, session);
+                    } else {
+                        target.logout(username, session);
+                    }
+                    local++;
+                    if ((local & 1023) == 0) {
+                        ops.add(1024);
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        Thread.sleep(duration);
+        stop.set(true);
+        long elapsed = System.nanoTime() - start;
+        for (Thread t : threads) t.join();
+
+        return ops.sum() / (elapsed / 1e9);
+    }
+
+    private static ChatRoom newRoom(String name) {
+        return new ChatRoom(name, false, null, new int[0]);
+    }
+
+    private static Session newSession(String username) {
+        Session session = Session.open(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+        session.setUsername(username);
+        return session;
+    }
+}
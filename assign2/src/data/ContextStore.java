@@ -0,0 +1,111 @@
+package data;
+
+import org.json.JSONArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * AI contexts (Ollama's array of token ids), one small binary file per room: data/context/<room>.ctx.
+ * Layout: [int magic "CCTX"][byte version][varint count][count varints]. Token ids are small
+ * non-negative ints, so most take 2-3 bytes instead of the 6-8 they take as pretty-printed JSON.
+ * A save writes a temporary file and renames it over the old one, so a crash keeps either context whole.
+ */
+public class ContextStore {
+    private static final int MAGIC = 0x43435458; // "CCTX"
+    private static final byte VERSION = 1;
+
+    private final Path dir;
+
+    public ContextStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /** The stored context of the room, empty if it never had one. */
+    public int[] load(String room) throws IOException {
+        Path file = fileOf(room);
+        if (!Files.exists(file)) return new int[0];
+        return decode(Files.readAllBytes(file));
+    }
+
+    public synchronized void save(String room, int[] context) throws IOException {
+        Path file = fileOf(room);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(encode(context));
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Ollama returns the context as a JSON array of numbers. */
+    public static int[] fromJson(JSONArray json) {
+        int[] context = new int[json.length()];
+        for (int i = 0; i < context.length; i++) {
+            context[i] = json.getInt(i);
+        }
+        return context;
+    }
+
+    private Path fileOf(String room) {
+        return dir.resolve(MessageLog.encodeName(room) + ".ctx");
+    }
+
+    static byte[] encode(int[] context) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(9 + context.length * 3);
+        out.write(MAGIC >>> 24);
+        out.write(MAGIC >>> 16);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, context.length);
+        for (int token : context) {
+            writeVarint(out, token);
+        }
+        return out.toByteArray();
+    }
+
+    static int[] decode(byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (bytes.length < 5 || buf.getInt() != MAGIC) throw new IOException("Not a context file");
+        byte version = buf.get();
+        if (version != VERSION) throw new IOException("Unsupported context file version " + version);
+
+        int count = readVarint(buf);
+        // Every token takes at least one byte, a bigger count means a corrupted file
+        if (count < 0 || count > buf.remaining()) throw new IOException("Corrupted context file");
+        int[] context = new int[count];
+        for (int i = 0; i < count; i++) {
+            context[i] = readVarint(buf);
+        }
+        return context;
+    }
+
+    // Unsigned LEB128, 7 bits per byte; negative values (never produced by Ollama) take 5 bytes
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buf.hasRemaining()) throw new IOException("Truncated context file");
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupted context file");
+    }
+}
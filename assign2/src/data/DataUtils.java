@@ -1,13 +1,48 @@
 package data;
 
 import org.json.*;
+import logging.Log;
+import metrics.Histogram;
+import metrics.Metrics;
 import rooms.ChatRoom;
+import rooms.Message;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 
 public class DataUtils {
-    private static final String DATA_FILE = "data/data.json";
+    private static final String DATA_DIR = System.getProperty("chat.data.dir", "data");
+    private static final String DATA_FILE = DATA_DIR + "/data.json";
+    private static final String LOG_DIR = DATA_DIR + "/log";
+    private static final String USERS_FILE = DATA_DIR + "/users.txt";
+    private static final String ROOM_IDS_FILE = DATA_DIR + "/room-ids.txt";
+    private static final String CONTEXT_DIR = DATA_DIR + "/context";
+    private static final String INDEX_DIR = DATA_DIR + "/index";
+
+    private static final long SEGMENT_BYTES = Long.getLong("chat.log.segmentBytes", 8L * 1024 * 1024);
+    private static final MessageLog.FsyncPolicy FSYNC_POLICY =
+            MessageLog.FsyncPolicy.valueOf(System.getProperty("chat.log.fsync", "INTERVAL"));
+    private static final long SYNC_INTERVAL_MS = Long.getLong("chat.log.syncIntervalMs", 1000);
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.persist.queueCapacity", 65536);
+    private static final int BATCH_SIZE = Integer.getInteger("chat.persist.batchSize", 512);
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("chat.persist.flushIntervalMs", 20);
+
+    private static final Histogram CONTEXT_SAVE = Metrics.histogram("persist.context");
+
+    // Opened on first use, so the JSON migration only runs once
+    private static class LogHolder {
+        static final MessageLog LOG = openMessageLog();
+        static final SearchIndex INDEX = openSearchIndex(LOG);
+        static final PersistenceQueue QUEUE = new PersistenceQueue(LOG, INDEX, QUEUE_CAPACITY, BATCH_SIZE, FLUSH_INTERVAL_MS);
+    }
+
+    private static class ContextHolder {
+        static final ContextStore STORE = openContextStore();
+    }
 
     public static DataParser loadData() {
         DataParser data = new DataParser();
@@ -34,28 +69,22 @@ public class DataUtils {
 
             // Carrega salas de chat
             JSONArray rooms = json.getJSONArray("chatrooms");
+            migrateContexts(json, rooms);
             for (int i = 0; i < rooms.length(); i++) {
                 JSONObject room = rooms.getJSONObject(i);
                 ChatRoom chatRoom = new ChatRoom(
                         room.getString("name"),
                         room.getBoolean("isAI"),
                         room.optString("prompt", ""),
-                        room.getJSONArray("context")
+                        loadContext(room.getString("name"))
                 );
-
-                // Carrega mensagens
-                JSONArray messages = room.getJSONArray("messages");
-                List<String> messageList = new ArrayList<>();
-                for (int j = 0; j < messages.length(); j++) {
-                    messageList.add(messages.getString(j));
-                }
-                chatRoom.setHistory(messageList);
+                chatRoom.setAICacheEnabled(room.optBoolean("aiCache", true));
 
                 data.getChatrooms().add(chatRoom);
             }
 
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Erro ao ler/gravar dados", e);
         }
 
         return data;
@@ -80,12 +109,13 @@ public class DataUtils {
             for (ChatRoom room : data.getChatrooms()) {
                 JSONObject roomJson = new JSONObject();
                 roomJson.put("name", room.getName());
-                roomJson.put("messages", new JSONArray(room.getHistory()));
                 roomJson.put("isAI", room.isAI());
                 if (!room.getPrompt().isEmpty()) {
                     roomJson.put("prompt", room.getPrompt());
                 }
-                roomJson.put("context", room.getAIContext());
+                if (!room.isAICacheEnabled()) {
+                    roomJson.put("aiCache", false);
+                }
                 rooms.put(roomJson);
             }
             json.put("chatrooms", rooms);
@@ -99,80 +129,299 @@ public class DataUtils {
             );
 
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Erro ao ler/gravar dados", e);
         }
     }
 
+    /**
+     * Loads every registered user from the users file (one "username TAB passwordHash" line each).
+     * The first time, the file is created from the users stored in data.json.
+     */
+    public static List<User> loadUsers() {
+        List<User> users = new ArrayList<>();
+        Path usersPath = Paths.get(USERS_FILE);
+        try {
+            if (!Files.exists(usersPath)) {
+                migrateUsers(usersPath);
+            }
+            for (String line : Files.readAllLines(usersPath, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) continue; // a torn last line is ignored
+                users.add(new User(line.substring(0, tab), line.substring(tab + 1)));
+            }
+        } catch (IOException e) {
+            Log.error("Erro ao ler/gravar dados", e);
+        }
+        return users;
+    }
+
+    /** Appends one user to the users file and forces it to disk. */
+    public static synchronized void appendUser(User user) throws IOException {
+        appendLine(Paths.get(USERS_FILE), user.getUsername() + "\t" + user.getPasswordHash() + "\n");
+    }
+
+    /** Room name to id, from the room id file (one "id TAB name" line each). */
+    public static Map<String, Integer> loadRoomIds() {
+        Map<String, Integer> ids = new HashMap<>();
+        Path path = Paths.get(ROOM_IDS_FILE);
+        if (!Files.exists(path)) return ids;
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) continue; // a torn last line is ignored
+                try {
+                    ids.put(line.substring(tab + 1), Integer.parseInt(line.substring(0, tab)));
+                } catch (NumberFormatException e) {
+                    Log.warn("Linha inválida em {}: {}", ROOM_IDS_FILE, line);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Erro ao ler ids das salas", e);
+        }
+        return ids;
+    }
+
+    /** Appends one room id to the room id file and forces it to disk. */
+    public static synchronized void appendRoomId(int id, String name) throws IOException {
+        appendLine(Paths.get(ROOM_IDS_FILE), id + "\t" + name + "\n");
+    }
+
+    private static void appendLine(Path path, String line) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try (FileChannel ch = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(false);
+        }
+    }
+
+    private static void migrateUsers(Path usersPath) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Path dataPath = Paths.get(DATA_FILE);
+        if (Files.exists(dataPath)) {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(dataPath)));
+            JSONArray users = json.optJSONArray("users");
+            for (int i = 0; users != null && i < users.length(); i++) {
+                JSONObject user = users.getJSONObject(i);
+                sb.append(user.getString("username")).append('\t').append(user.getString("passwordHash")).append('\n');
+            }
+        }
+        Files.createDirectories(usersPath.toAbsolutePath().getParent());
+        Path tmp = Paths.get(USERS_FILE + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, usersPath, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     public static synchronized void addChatroom(String roomName, boolean isAI) {
         DataParser data = loadData();
 
         // Verifica se a sala já existe
         if (data.getChatrooms().stream()
                 .noneMatch(r -> r.getName().equals(roomName))) {
-            ChatRoom newRoom = new ChatRoom(roomName, isAI, "", new JSONArray());
+            ChatRoom newRoom = new ChatRoom(roomName, isAI, "", new int[0]);
             data.getChatrooms().add(newRoom);
             saveData(data);
         }
     }
 
-    public static synchronized void addMessage(String roomName, String message) {
+    public static synchronized void setAICache(String roomName, boolean enabled) {
+        DataParser data = loadData();
+        for (ChatRoom room : data.getChatrooms()) {
+            if (room.getName().equals(roomName)) {
+                room.setAICacheEnabled(enabled);
+                saveData(data);
+                return;
+            }
+        }
+    }
+
+    // Only enqueues, the message reaches the log through the persistence writer
+    public static void addMessage(String roomName, Message message) {
+        LogHolder.QUEUE.enqueue(roomName, message);
+    }
+
+    public static long messageCount(String roomName) {
         try {
-            // Lê o arquivo atual
-            String content = new String(Files.readAllBytes(Paths.get(DATA_FILE)));
-            JSONObject json = new JSONObject(content);
-            JSONArray rooms = json.getJSONArray("chatrooms");
+            return LogHolder.LOG.size(roomName);
+        } catch (IOException e) {
+            Log.warn("Erro ao ler mensagens: {}", e.getMessage());
+            return 0;
+        }
+    }
 
-            // Encontra e atualiza a sala específica
-            for (int i = 0; i < rooms.length(); i++) {
-                JSONObject room = rooms.getJSONObject(i);
-                if (room.getString("name").equals(roomName)) {
-                    JSONArray messages = room.getJSONArray("messages");
-                    messages.put(message);
-                    break;
-                }
-            }
+    public static List<Message> readMessages(String roomName, int roomId, long from, int count) {
+        try {
+            return LogHolder.LOG.read(roomName, roomId, from, count);
+        } catch (IOException e) {
+            Log.warn("Erro ao ler mensagens: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
-            // Salva o arquivo atualizado
-            Files.write(
-                    Paths.get(DATA_FILE),
-                    json.toString(2).getBytes(),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING
-            );
+    /** Messages read by sequence number (ascending), each segment of the log scanned once. */
+    public static List<Message> readMessages(String roomName, int roomId, long[] seqs) {
+        try {
+            return LogHolder.LOG.read(roomName, roomId, seqs);
+        } catch (IOException e) {
+            Log.warn("Erro ao ler mensagens: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
+    /** Sequence numbers of the newest persisted messages with every term, newest first; the first search of a room loads its index. */
+    public static long[] searchMessages(String roomName, List<String> terms, int limit) {
+        try {
+            return LogHolder.INDEX.search(roomName, terms, limit);
         } catch (IOException e) {
-            System.out.println("[DEBUG] Erro ao salvar mensagem: " + e.getMessage());
+            Log.warn("Erro ao pesquisar mensagens: {}", e.getMessage());
+            return new long[0];
         }
     }
 
-    public static synchronized void updateContext(String roomName, JSONArray context) {
+    public static PersistenceQueue getPersistenceQueue() {
+        return LogHolder.QUEUE;
+    }
+
+    // Drains the pending messages and saves the search indexes before closing the log
+    public static void close() {
         try {
-            // Lê o arquivo atual
-            String content = new String(Files.readAllBytes(Paths.get(DATA_FILE)));
-            JSONObject json = new JSONObject(content);
-            JSONArray rooms = json.getJSONArray("chatrooms");
+            LogHolder.QUEUE.close();
+            Log.info("Persistence queue closed: {}", LogHolder.QUEUE);
+            LogHolder.INDEX.close();
+            LogHolder.LOG.close();
+        } catch (IOException e) {
+            Log.error("Erro ao fechar log: {}", e.getMessage());
+        }
+    }
+
+    private static MessageLog openMessageLog() {
+        try {
+            Path logDir = Paths.get(LOG_DIR);
+            if (!Files.exists(logDir)) {
+                migrateMessages(logDir);
+            }
+            return new MessageLog(logDir, SEGMENT_BYTES, FSYNC_POLICY, SYNC_INTERVAL_MS);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            // Encontra e atualiza a sala específica
+    private static SearchIndex openSearchIndex(MessageLog log) {
+        try {
+            return new SearchIndex(Paths.get(INDEX_DIR), log);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Moves the messages embedded in data.json into the room logs, then strips them from the file
+    private static void migrateMessages(Path logDir) throws IOException {
+        Path dataPath = Paths.get(DATA_FILE);
+        if (!Files.exists(dataPath)) return;
+
+        String content = new String(Files.readAllBytes(dataPath));
+        JSONObject json = new JSONObject(content);
+        JSONArray rooms = json.optJSONArray("chatrooms");
+        if (rooms == null) return;
+
+        // Built next to the final directory and renamed, so a crash never leaves a half-migrated log
+        Path tmpDir = Paths.get(LOG_DIR + ".migrating");
+        deleteRecursively(tmpDir);
+        int migrated = 0;
+        try (MessageLog tmpLog = new MessageLog(tmpDir, SEGMENT_BYTES, MessageLog.FsyncPolicy.NEVER, 0)) {
             for (int i = 0; i < rooms.length(); i++) {
                 JSONObject room = rooms.getJSONObject(i);
-                if (room.getString("name").equals(roomName)) {
+                JSONArray messages = room.optJSONArray("messages");
+                if (messages == null) continue;
 
-                    room.remove("context");
-                    room.put("context", context);
-                    break;
+                // Stored as plain lines, without a timestamp; seq and room id are not part of the record
+                List<Message> messageList = new ArrayList<>();
+                for (int j = 0; j < messages.length(); j++) {
+                    messageList.add(Message.parse(0, j, 0, messages.getString(j)));
                 }
+                tmpLog.appendAll(room.getString("name"), messageList);
+                migrated += messageList.size();
             }
+            tmpLog.sync();
+        }
+        Files.move(tmpDir, logDir, StandardCopyOption.ATOMIC_MOVE);
 
-            // Salva o arquivo atualizado
-            Files.write(
-                    Paths.get(DATA_FILE),
-                    json.toString(2).getBytes(),
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING
-            );
+        for (int i = 0; i < rooms.length(); i++) {
+            rooms.getJSONObject(i).remove("messages");
+        }
+        Files.write(
+                dataPath,
+                json.toString(2).getBytes(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        );
+        Log.info("Migrated {} messages from {} to {}", migrated, DATA_FILE, LOG_DIR);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (var walk = Files.walk(path)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    // Only the room's own context file is rewritten, data.json is not touched
+    public static void updateContext(String roomName, int[] context) {
+        long start = System.nanoTime();
+        try {
+            ContextHolder.STORE.save(roomName, context);
+            CONTEXT_SAVE.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            Log.warn("Erro ao salvar contexto: {}", e.getMessage());
+        }
+    }
 
+    public static int[] loadContext(String roomName) {
+        try {
+            return ContextHolder.STORE.load(roomName);
         } catch (IOException e) {
-            System.out.println("[DEBUG] Erro ao salvar contexto: " + e.getMessage());
+            Log.warn("Erro ao ler contexto: {}", e.getMessage());
+            return new int[0];
         }
     }
-}
\ No newline at end of file
+
+    private static ContextStore openContextStore() {
+        try {
+            return new ContextStore(Paths.get(CONTEXT_DIR));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Older data.json files kept every context inline; they move to the context files once
+    private static void migrateContexts(JSONObject json, JSONArray rooms) throws IOException {
+        int migrated = 0;
+        boolean found = false;
+        for (int i = 0; i < rooms.length(); i++) {
+            JSONObject room = rooms.getJSONObject(i);
+            JSONArray context = room.optJSONArray("context");
+            if (context == null) continue;
+
+            found = true;
+            if (!context.isEmpty()) {
+                ContextHolder.STORE.save(room.getString("name"), ContextStore.fromJson(context));
+                migrated++;
+            }
+            room.remove("context");
+        }
+        if (!found) return;
+
+        Files.write(
+                Paths.get(DATA_FILE),
+                json.toString(2).getBytes(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        );
+        Log.info("Migrated {} AI contexts from {} to {}", migrated, DATA_FILE, CONTEXT_DIR);
+    }
+}
@@ -0,0 +1,514 @@
+package data;
+
+import logging.Log;
+import metrics.Meter;
+import metrics.Metrics;
+import rooms.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only message storage, one directory per room.
+ * Each room is a sequence of segment files named after the sequence number of their first record.
+ * A record is a 4-byte big-endian length followed by the message, so appending a message only costs
+ * the size of that message. In version 2 segments the message is an 8-byte timestamp, a 2-byte sender
+ * length, the UTF-8 sender and the UTF-8 text; version 1 segments hold the "sender: text" line and are
+ * still read, with timestamp 0. A record's sequence number is its position in the room, never stored;
+ * append checks that each message's seq is that position, see RoomLog.plan.
+ * The offset of every 1024th record of a segment is kept in memory, so a read seeks close to the records
+ * it wants instead of walking the segment from its start.
+ */
+public class MessageLog implements Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS,     // force to disk after every append
+        INTERVAL,   // force at most once per sync interval
+        NEVER       // leave it to the OS
+    }
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int SEGMENT_MAGIC = 0x434C4F47; // "CLOG"
+    private static final int SEGMENT_VERSION = 2;
+    private static final int LINE_VERSION = 1; // records are whole "sender: text" lines
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int MARK_INTERVAL = 1024; // records between two remembered offsets of a segment
+    private static final String LOST_TEXT = "[message lost]";
+    private static final Meter SEQ_MISMATCHES = Metrics.meter("log.seq.mismatch");
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long syncIntervalMillis;
+    private final Map<String, RoomLog> logs = new ConcurrentHashMap<>();
+
+    public MessageLog(Path dir, long segmentBytes, FsyncPolicy fsyncPolicy, long syncIntervalMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        Files.createDirectories(dir);
+    }
+
+    /** Appends a message at its sequence number; returns the sequence number of the first record written. */
+    public long append(String room, Message message) throws IOException {
+        return log(room).append(List.of(message));
+    }
+
+    /** Appends several messages with a single sync; returns the sequence number of the first record written. */
+    public long appendAll(String room, List<Message> messages) throws IOException {
+        return log(room).append(messages);
+    }
+
+    /** Number of messages stored for the room, which is also the next sequence number. */
+    public long size(String room) throws IOException {
+        return log(room).size();
+    }
+
+    /** Reads up to count messages starting at sequence number from, tagged with roomId. */
+    public List<Message> read(String room, int roomId, long from, int count) throws IOException {
+        return log(room).read(roomId, from, count);
+    }
+
+    public List<Message> readAll(String room, int roomId) throws IOException {
+        return read(room, roomId, 0, Integer.MAX_VALUE);
+    }
+
+    /** The messages with the given sequence numbers, ascending; segments without any of them are not opened. */
+    public List<Message> read(String room, int roomId, long[] seqs) throws IOException {
+        List<Message> result = new ArrayList<>(seqs.length);
+        if (seqs.length > 0) {
+            log(room).scan(roomId, seqs[0], seqs[seqs.length - 1] + 1, seqs, result::add);
+        }
+        return result;
+    }
+
+    /** Hands every message from from up to, not including, to to the consumer, in order, without loading them all. */
+    public void scan(String room, int roomId, long from, long to, Consumer<Message> consumer) throws IOException {
+        log(room).scan(roomId, from, to, null, consumer);
+    }
+
+    /** Forces every room log to disk, regardless of the fsync policy. */
+    public void sync() throws IOException {
+        for (RoomLog log : logs.values()) {
+            log.sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RoomLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+
+    private RoomLog log(String room) throws IOException {
+        try {
+            return logs.computeIfAbsent(room, r -> {
+                try {
+                    return new RoomLog(r, dir.resolve(encodeName(r)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Room names come from users, so anything other than [A-Za-z0-9_-] is escaped
+    static String encodeName(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return sb.toString();
+    }
+
+    private class RoomLog {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final String room;
+        private final Path roomDir;
+        private final List<Long> segmentBases = new ArrayList<>();
+        // Segment base to the byte offset of every MARK_INTERVAL-th record, so a read seeks close to where it starts;
+        // kept up to date for the active segment, noted for a sealed one the first time it is scanned
+        private final Map<Long, long[]> marks = new ConcurrentHashMap<>();
+        private FileChannel active;
+        private long nextSeq;
+        private int activeVersion;
+        private boolean dirty = false;
+        private long lastSync = System.currentTimeMillis();
+
+        RoomLog(String room, Path roomDir) throws IOException {
+            this.room = room;
+            this.roomDir = roomDir;
+            Files.createDirectories(roomDir);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(roomDir, "*" + SEGMENT_SUFFIX)) {
+                for (Path p : stream) {
+                    String fileName = p.getFileName().toString();
+                    segmentBases.add(Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+            Collections.sort(segmentBases);
+
+            if (segmentBases.isEmpty()) {
+                openSegment(0);
+                nextSeq = 0;
+            } else {
+                long base = segmentBases.get(segmentBases.size() - 1);
+                active = FileChannel.open(segmentPath(base), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                nextSeq = base + recover(active);
+                if (activeVersion < SEGMENT_VERSION) {
+                    upgradeActive(base);
+                }
+            }
+        }
+
+        long append(List<Message> messages) throws IOException {
+            // Encoded before taking the lock; a message too big for recover() to accept fails the call before anything is written
+            List<byte[]> records = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                records.add(encode(message));
+            }
+            lock.lock();
+            try {
+                long first = nextSeq;
+                long seq = nextSeq;
+                long start = active.size();
+                long size = start;
+                List<Long> newMarks = new ArrayList<>();
+                ByteArrayOutputStream pending = new ByteArrayOutputStream();
+                for (byte[] record : plan(messages, records)) {
+                    if (size > HEADER_SIZE && size + record.length > segmentBytes) {
+                        commit(pending, start, seq, newMarks);
+                        rollover();
+                        start = size = active.size();
+                    }
+                    if ((seq - activeBase()) % MARK_INTERVAL == 0) newMarks.add(size);
+                    pending.write(record);
+                    size += record.length;
+                    seq++;
+                }
+                commit(pending, start, seq, newMarks);
+                maybeSync();
+                return first;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+         * The records to write so that every message lands at its own seq. A seq past the end means messages
+         * before it never got here (e.g. a batch that failed to write): the gap is filled with LOST_TEXT records,
+         * otherwise every later message would be read back under the wrong number. A seq already stored is refused.
+         * Both are errors, logged and counted in log.seq.mismatch.
+         */
+        private List<byte[]> plan(List<Message> messages, List<byte[]> records) throws IOException {
+            List<byte[]> planned = new ArrayList<>(records.size());
+            long seq = nextSeq;
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                if (message.seq() < seq) {
+                    SEQ_MISMATCHES.mark();
+                    Log.error("Log of {} already holds message {}, dropped", room, message.seq());
+                    continue;
+                }
+                if (message.seq() > seq) {
+                    SEQ_MISMATCHES.mark();
+                    Log.error("Log of {} never got messages {}, stored as lost", room, seq + ".." + (message.seq() - 1));
+                    byte[] lost = encode(new Message(message.roomId(), seq, message.timestamp(), "", LOST_TEXT));
+                    while (seq < message.seq()) {
+                        planned.add(lost);
+                        seq++;
+                    }
+                }
+                planned.add(records.get(i));
+                seq++;
+            }
+            return planned;
+        }
+
+        // Length-prefixed record of a message
+        private byte[] encode(Message message) throws IOException {
+            byte[] sender = message.sender().getBytes(StandardCharsets.UTF_8);
+            byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+            if (sender.length > 0xFFFF) {
+                // Does not fit the length field; kept as a whole line, read back the same way
+                text = message.line().getBytes(StandardCharsets.UTF_8);
+                sender = new byte[0];
+            }
+            int len = 8 + 2 + sender.length + text.length;
+            if (len > MAX_RECORD_SIZE) {
+                throw new IOException("Message of " + len + " bytes is over the " + MAX_RECORD_SIZE + " byte record limit");
+            }
+            ByteBuffer buf = ByteBuffer.allocate(4 + len);
+            buf.putInt(len).putLong(message.timestamp()).putShort((short) sender.length).put(sender).put(text);
+            return buf.array();
+        }
+
+        // Writes the pending records at start; nextSeq and the marks only move once they are in the file
+        private void commit(ByteArrayOutputStream pending, long start, long seq, List<Long> newMarks) throws IOException {
+            try {
+                write(pending.toByteArray(), start);
+            } catch (IOException e) {
+                // A partial record would sit in front of every later one, so the segment is cut back to where it was
+                try {
+                    active.truncate(start);
+                } catch (IOException te) {
+                    e.addSuppressed(te);
+                }
+                throw e;
+            }
+            dirty = true;
+            for (long offset : newMarks) {
+                mark(activeBase(), offset);
+            }
+            newMarks.clear();
+            pending.reset();
+            nextSeq = seq;
+        }
+
+        private void write(byte[] bytes, long pos) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                pos += active.write(buf, pos);
+            }
+        }
+
+        private long activeBase() {
+            return segmentBases.get(segmentBases.size() - 1);
+        }
+
+        // Replaced rather than grown in place, readers hold on to the array they got
+        private void mark(long base, long offset) {
+            long[] old = marks.getOrDefault(base, new long[0]);
+            long[] updated = Arrays.copyOf(old, old.length + 1);
+            updated[old.length] = offset;
+            marks.put(base, updated);
+        }
+
+        long size() {
+            lock.lock();
+            try {
+                return nextSeq;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Message> read(int roomId, long from, int count) throws IOException {
+            List<Message> result = new ArrayList<>();
+            scan(roomId, from, from + Math.min(count, Integer.MAX_VALUE - 1), null, result::add);
+            return result;
+        }
+
+        // Decodes the records in [from, to), only those in wanted (sorted) if given; the rest are skipped
+        void scan(int roomId, long from, long to, long[] wanted, Consumer<Message> consumer) throws IOException {
+            List<Long> bases;
+            long end;
+            lock.lock();
+            try {
+                end = Math.min(nextSeq, to);
+                bases = new ArrayList<>(segmentBases);
+            } finally {
+                lock.unlock();
+            }
+            if (from < 0 || from >= end) return;
+
+            // Records below end are never rewritten, so the files can be read without the lock
+            int next = 0; // next wanted sequence number
+            int idx = segmentIndex(bases, from);
+            while (idx < bases.size() && bases.get(idx) < end) {
+                long base = bases.get(idx);
+                long segEnd = Math.min(end, idx + 1 < bases.size() ? bases.get(idx + 1) : end);
+                long first = from;
+                if (wanted != null) {
+                    while (next < wanted.length && wanted[next] < base) next++;
+                    if (next == wanted.length || wanted[next] >= end) return;
+                    if (wanted[next] >= segEnd) {
+                        idx = segmentIndex(bases, wanted[next]);
+                        continue;
+                    }
+                    first = wanted[next];
+                }
+                // A sealed segment scanned for the first time is read to its end to note its marks
+                long[] segMarks = marks.get(base);
+                boolean noting = segMarks == null && idx + 1 < bases.size();
+                long limit = noting ? bases.get(idx + 1) : segEnd;
+                List<Long> noted = noting ? new ArrayList<>() : null;
+
+                try (FileChannel ch = FileChannel.open(segmentPath(base), StandardOpenOption.READ)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    while (header.hasRemaining() && ch.read(header, header.position()) >= 0) {}
+                    int version = header.getInt(4); // magic checked by recover
+                    long seq = base;
+                    long pos = HEADER_SIZE;
+                    if (segMarks != null && segMarks.length > 0) {
+                        int k = (int) Math.min(Math.max(0, first - base) / MARK_INTERVAL, segMarks.length - 1);
+                        seq = base + (long) k * MARK_INTERVAL;
+                        pos = segMarks[k];
+                    }
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(pos))));
+                    for (; seq < limit; seq++) {
+                        if (noting && (seq - base) % MARK_INTERVAL == 0) noted.add(pos);
+                        else if (!noting && wanted != null && (next == wanted.length || wanted[next] >= segEnd)) break;
+                        int len = in.readInt();
+                        pos += 4 + len;
+                        if (seq >= from && seq < segEnd && (wanted == null || (next < wanted.length && wanted[next] == seq))) {
+                            byte[] bytes = new byte[len];
+                            in.readFully(bytes);
+                            consumer.accept(decode(roomId, seq, version, bytes));
+                            if (wanted != null) next++;
+                        } else {
+                            in.skipNBytes(len);
+                        }
+                    }
+                }
+                if (noting) {
+                    marks.put(base, noted.stream().mapToLong(Long::longValue).toArray());
+                }
+                idx++;
+            }
+        }
+
+        void sync() throws IOException {
+            lock.lock();
+            try {
+                if (dirty) {
+                    active.force(false);
+                    dirty = false;
+                    lastSync = System.currentTimeMillis();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() throws IOException {
+            lock.lock();
+            try {
+                if (dirty && fsyncPolicy != FsyncPolicy.NEVER) {
+                    active.force(false);
+                }
+                active.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void maybeSync() throws IOException {
+            switch (fsyncPolicy) {
+                case ALWAYS -> sync();
+                case INTERVAL -> {
+                    if (System.currentTimeMillis() - lastSync >= syncIntervalMillis) sync();
+                }
+                case NEVER -> {}
+            }
+        }
+
+        private void rollover() throws IOException {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                active.force(false);
+            }
+            active.close();
+            openSegment(nextSeq);
+        }
+
+        private Message decode(int roomId, long seq, int version, byte[] bytes) {
+            if (version == LINE_VERSION) {
+                return Message.parse(roomId, seq, 0, new String(bytes, StandardCharsets.UTF_8));
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            long timestamp = buf.getLong();
+            int senderLength = buf.getShort() & 0xFFFF;
+            String sender = new String(bytes, 10, senderLength, StandardCharsets.UTF_8);
+            String text = new String(bytes, 10 + senderLength, bytes.length - 10 - senderLength, StandardCharsets.UTF_8);
+            return new Message(roomId, seq, timestamp, sender, text);
+        }
+
+        // Records of one segment share a format, so an old active segment is never appended to
+        private void upgradeActive(long base) throws IOException {
+            if (nextSeq == base) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+                active.write(header, 0);
+                dirty = true;
+            } else {
+                Log.info("Starting a version {} segment in {} at {}", SEGMENT_VERSION, roomDir, nextSeq);
+                rollover();
+            }
+            activeVersion = SEGMENT_VERSION;
+        }
+
+        private void openSegment(long base) throws IOException {
+            active = FileChannel.open(segmentPath(base), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+            active.write(header, 0);
+            segmentBases.add(base);
+            activeVersion = SEGMENT_VERSION;
+            dirty = true;
+        }
+
+        // Counts the complete records of the last segment and cuts off a torn write at the tail
+        private long recover(FileChannel ch) throws IOException {
+            long fileSize = ch.size();
+            if (fileSize < HEADER_SIZE) {
+                ch.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+                ch.write(header, 0);
+                activeVersion = SEGMENT_VERSION;
+                return 0;
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(0))));
+            if (in.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a message log segment: " + roomDir);
+            }
+            activeVersion = in.readInt();
+
+            long base = activeBase();
+            long pos = HEADER_SIZE;
+            long count = 0;
+            while (pos + 4 <= fileSize) {
+                int len = in.readInt();
+                if (len < 0 || len > MAX_RECORD_SIZE || pos + 4 + len > fileSize) break;
+                if (count % MARK_INTERVAL == 0) mark(base, pos);
+                in.skipNBytes(len);
+                pos += 4 + len;
+                count++;
+            }
+            if (pos < fileSize) {
+                Log.warn("Truncating torn record in {} at offset {}", roomDir, pos);
+                ch.truncate(pos);
+            }
+            return count;
+        }
+
+        private int segmentIndex(List<Long> bases, long seq) {
+            int idx = Collections.binarySearch(bases, seq);
+            return idx >= 0 ? idx : -idx - 2;
+        }
+
+        private Path segmentPath(long base) {
+            return roomDir.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+        }
+    }
+}
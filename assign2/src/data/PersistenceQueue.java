@@ -0,0 +1,246 @@
+package data;
+
+import logging.Log;
+import metrics.Histogram;
+import metrics.Metrics;
+import rooms.Message;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind queue between the chat rooms and the message log.
+ * Producers only enqueue; a single writer thread drains the queue and group-commits
+ * everything it took in one batch, one append per room.
+ * When the queue is full producers block, which is counted as a backpressure stall.
+ * Every appended batch is then handed to the search index, off the rooms' locks.
+ * Messages arriving after close() are written by their producer, but only once the writer is done
+ * and behind whatever it left in the queue, so each room's log still gets its messages in seq order.
+ */
+public class PersistenceQueue {
+
+    private record Entry(String room, Message message, long enqueuedAt) {}
+
+    private static final Entry POISON = new Entry(null, null, 0);
+
+    // Enqueue to written (not fsynced), and the time of the appends of one batch
+    private static final Histogram LATENCY = Metrics.histogram("persist.latency");
+    private static final Histogram COMMIT = Metrics.histogram("persist.commit");
+
+    private final MessageLog log;
+    private final SearchIndex index;
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Thread writer;
+    private final ReentrantLock lateLock = new ReentrantLock(); // late writes, one at a time
+    private volatile boolean closed = false;
+
+    // Backpressure metrics
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong interruptedPuts = new AtomicLong();
+    private volatile int maxDepth = 0;
+
+    public PersistenceQueue(MessageLog log, SearchIndex index, int capacity, int batchSize, long flushIntervalMillis) {
+        this.log = log;
+        this.index = index;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.writer = Thread
+                .ofPlatform()
+                .name("persistence-writer")
+                .daemon(true)
+                .unstarted(this::run);
+        writer.start();
+    }
+
+    public void enqueue(String room, Message message) {
+        Entry entry = new Entry(room, message, System.nanoTime());
+        if (closed) {
+            // Late messages during shutdown are written through instead of being lost
+            writeLate(entry);
+            return;
+        }
+        if (!queue.offer(entry)) {
+            long start = System.nanoTime();
+            stalls.incrementAndGet();
+            // The message already has its sequence number, so an interrupt only delays it; the flag is restored after
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        queue.put(entry);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        interruptedPuts.incrementAndGet();
+                    }
+                }
+            } finally {
+                stallNanos.addAndGet(System.nanoTime() - start);
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+        enqueued.incrementAndGet();
+        int depth = queue.size();
+        if (depth > maxDepth) maxDepth = depth;
+        // Closed while this was being queued: the writer may already have taken its last batch
+        if (closed) writeLate(null);
+    }
+
+    /** Stops accepting messages and waits until everything already queued is on disk. */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(POISON);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public long enqueued() {
+        return enqueued.get();
+    }
+
+    public long written() {
+        return written.get();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    public long stalls() {
+        return stalls.get();
+    }
+
+    public long stallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos.get());
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    // Producers interrupted while blocked on a full queue; their messages were still queued
+    public long interruptedPuts() {
+        return interruptedPuts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + depth() + " maxDepth=" + maxDepth + " enqueued=" + enqueued() + " written=" + written()
+                + " batches=" + batches() + " stalls=" + stalls() + " stallMs=" + stallMillis() + " failures=" + failures()
+                + " interrupted=" + interruptedPuts();
+    }
+
+    // Writes what the writer left in the queue, then the entry (if any), after the writer has stopped
+    private void writeLate(Entry entry) {
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        lateLock.lock();
+        try {
+            List<Entry> late = new ArrayList<>();
+            queue.drainTo(late);
+            late.removeIf(e -> e == POISON);
+            if (entry != null) late.add(entry);
+            commit(late);
+        } finally {
+            lateLock.unlock();
+        }
+    }
+
+    // Waits for a first message, then lingers up to the flush interval to fill the batch
+    private void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (batch.size() < batchSize && batch.get(batch.size() - 1) != POISON) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+
+            // A producer racing with close() can still slip in behind the poison entry
+            if (batch.removeIf(e -> e == POISON)) {
+                stop = true;
+                queue.drainTo(batch);
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+
+        try {
+            log.sync();
+        } catch (IOException e) {
+            Log.error("Erro ao sincronizar log: {}", e.getMessage());
+        }
+    }
+
+    // Groups the batch by room, keeping the order of each room, and writes one append per room
+    private void commit(List<Entry> batch) {
+        if (batch.isEmpty()) return;
+
+        long start = System.nanoTime();
+        Map<String, List<Message>> byRoom = new LinkedHashMap<>();
+        for (Entry e : batch) {
+            byRoom.computeIfAbsent(e.room(), r -> new ArrayList<>()).add(e.message());
+        }
+        for (Map.Entry<String, List<Message>> e : byRoom.entrySet()) {
+            try {
+                log.appendAll(e.getKey(), e.getValue());
+                index.added(e.getKey(), e.getValue());
+                written.addAndGet(e.getValue().size());
+            } catch (IOException ex) {
+                failures.addAndGet(e.getValue().size());
+                Log.error("Erro ao salvar mensagens de {}: {}", e.getKey(), ex.getMessage());
+            }
+        }
+        batches.incrementAndGet();
+
+        long end = System.nanoTime();
+        COMMIT.record(end - start);
+        for (Entry e : batch) {
+            LATENCY.record(end - e.enqueuedAt());
+        }
+    }
+}
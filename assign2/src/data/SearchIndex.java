@@ -0,0 +1,418 @@
+package data;
+
+import logging.Log;
+import metrics.Histogram;
+import metrics.Meter;
+import metrics.Metrics;
+import rooms.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inverted index over the message logs, for SEARCH: per room, every term maps to the ascending sequence
+ * numbers of the messages that contain it. A term is a run of letters and digits, lower-cased and without
+ * accents, so "Número" finds "numero".
+ * A room is indexed the first time it is searched, from its snapshot (data/index/<room>.idx) plus what the
+ * log got since; from then on the persistence writer adds every batch it appends, so the index always covers
+ * a prefix of the log. Messages still waiting in the persistence queue are not searchable yet.
+ * Snapshot layout: [int magic "CIDX"][byte version][varint nextSeq][varint terms], then per term
+ * [varint length][UTF-8 term][varint count][count varint gaps between sequence numbers]. It is written to a
+ * temporary file and renamed, and one that cannot be read is rebuilt from the log.
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x43494458; // "CIDX"
+    private static final byte VERSION = 1;
+    private static final String SUFFIX = ".idx";
+    public static final int MAX_TERM_LENGTH = 64; // longer terms are cut, in the index and in queries alike
+    // A loaded room writes a new snapshot every this many indexed messages; the rest is saved on close
+    private static final long SNAPSHOT_EVERY = Long.getLong("chat.search.snapshotEvery", 100_000);
+
+    private static final Histogram QUERY = Metrics.histogram("search.query");
+    private static final Histogram LOAD = Metrics.histogram("search.load");
+    private static final Meter INDEXED = Metrics.meter("search.indexed");
+
+    private final Path dir;
+    private final MessageLog log;
+    private final Map<String, RoomIndex> rooms = new ConcurrentHashMap<>(); // only rooms already loaded
+    private final Map<String, ReentrantLock> loadLocks = new ConcurrentHashMap<>();
+
+    public SearchIndex(Path dir, MessageLog log) throws IOException {
+        this.dir = dir;
+        this.log = log;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Adds a batch the writer just appended to the room's log, each message at its own seq.
+     * A room that was never searched is skipped, its load reads the batch back from the log.
+     */
+    public void added(String room, List<Message> messages) {
+        RoomIndex index = rooms.get(room);
+        if (index == null) return;
+
+        boolean snapshot;
+        index.lock.lock();
+        try {
+            for (Message m : messages) {
+                if (m.seq() > index.nextSeq) {
+                    catchUp(room, index, m.seq()); // a batch that failed half way, or a gap the log filled, never reached the index
+                }
+                if (m.seq() >= index.nextSeq) index.add(m.seq(), m); // older ones came from the log during the load
+            }
+            snapshot = !index.saving && index.nextSeq - index.savedSeq >= SNAPSHOT_EVERY;
+            if (snapshot) index.saving = true;
+        } catch (IOException e) {
+            Log.warn("Erro ao indexar mensagens de {}: {}", room, e.getMessage());
+            return;
+        } finally {
+            index.lock.unlock();
+        }
+        if (snapshot) {
+            Thread.ofVirtual().name("index-save-" + room).start(() -> save(room, index));
+        }
+    }
+
+    /** Sequence numbers of the newest messages of the room that contain every term, newest first, at most limit. */
+    public long[] search(String room, List<String> terms, int limit) throws IOException {
+        RoomIndex index = load(room);
+        long start = System.nanoTime();
+
+        // Postings only grow past size, so the prefix seen here can be walked without the lock
+        long[][] lists = new long[terms.size()][];
+        int[] sizes = new int[terms.size()];
+        index.lock.lock();
+        try {
+            for (int i = 0; i < lists.length; i++) {
+                Postings p = index.terms.get(terms.get(i));
+                if (p == null) return new long[0];
+                lists[i] = p.seqs;
+                sizes[i] = p.size;
+            }
+        } finally {
+            index.lock.unlock();
+        }
+
+        // Walks the shortest list from its end and looks each candidate up in the others;
+        // candidates only go down, so every lookup narrows that list for the next one
+        int shortest = 0;
+        for (int i = 1; i < lists.length; i++) {
+            if (sizes[i] < sizes[shortest]) shortest = i;
+        }
+        long[] hits = new long[Math.min(limit, sizes[shortest])];
+        int found = 0;
+        for (int c = sizes[shortest] - 1; c >= 0 && found < hits.length; c--) {
+            long seq = lists[shortest][c];
+            boolean all = true;
+            for (int i = 0; i < lists.length && all; i++) {
+                if (i == shortest) continue;
+                int pos = Arrays.binarySearch(lists[i], 0, sizes[i], seq);
+                all = pos >= 0;
+                sizes[i] = pos >= 0 ? pos : -pos - 1;
+            }
+            if (all) hits[found++] = seq;
+        }
+        QUERY.record(System.nanoTime() - start);
+        return Arrays.copyOf(hits, found);
+    }
+
+    /** Writes a snapshot of every loaded room that indexed something since its last one. */
+    public void close() {
+        for (Map.Entry<String, RoomIndex> e : rooms.entrySet()) {
+            save(e.getKey(), e.getValue());
+        }
+    }
+
+    /** The terms of a text, in order and with repetitions; a query is made of the same terms. */
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            int start = tokenStart(text, i);
+            if (start == text.length()) break;
+            i = tokenEnd(text, start);
+            terms.add(normalize(text.substring(start, i)));
+        }
+        return terms;
+    }
+
+    /**
+     * Up to width characters of the line around the first occurrence of a term, on a single line,
+     * with "…" where it was cut.
+     */
+    public static String snippet(String line, List<String> terms, int width) {
+        int at = 0;
+        int i = 0;
+        while (i < line.length()) {
+            int start = tokenStart(line, i);
+            if (start == line.length()) break;
+            i = tokenEnd(line, start);
+            if (terms.contains(normalize(line.substring(start, i)))) {
+                at = start;
+                break;
+            }
+        }
+        int from = Math.max(0, Math.min(at - width / 3, line.length() - width));
+        int to = Math.min(line.length(), from + width);
+        String cut = (from > 0 ? "…" : "") + line.substring(from, to) + (to < line.length() ? "…" : "");
+        return cut.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static int tokenStart(String text, int i) {
+        while (i < text.length() && !Character.isLetterOrDigit(text.codePointAt(i))) {
+            i += Character.charCount(text.codePointAt(i));
+        }
+        return i;
+    }
+
+    private static int tokenEnd(String text, int i) {
+        while (i < text.length() && Character.isLetterOrDigit(text.codePointAt(i))) {
+            i += Character.charCount(text.codePointAt(i));
+        }
+        return i;
+    }
+
+    // Lower case without accents; only non-ASCII tokens go through the Normalizer
+    static String normalize(String token) {
+        String term = token.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) >= 0x80) {
+                String decomposed = Normalizer.normalize(term, Normalizer.Form.NFD);
+                StringBuilder sb = new StringBuilder(decomposed.length());
+                for (int j = 0; j < decomposed.length(); j++) {
+                    char c = decomposed.charAt(j);
+                    if (Character.getType(c) != Character.NON_SPACING_MARK) sb.append(c);
+                }
+                term = sb.toString();
+                break;
+            }
+        }
+        return term.length() > MAX_TERM_LENGTH ? term.substring(0, MAX_TERM_LENGTH) : term;
+    }
+
+    // The loaded index of the room, built from its snapshot and the log the first time
+    private RoomIndex load(String room) throws IOException {
+        RoomIndex index = rooms.get(room);
+        if (index != null) return index;
+
+        ReentrantLock loadLock = loadLocks.computeIfAbsent(room, r -> new ReentrantLock());
+        loadLock.lock();
+        try {
+            index = rooms.get(room);
+            if (index != null) return index;
+
+            long start = System.nanoTime();
+            index = readSnapshot(room);
+            long size = log.size(room);
+            if (index.nextSeq > size) {
+                Log.warn("Search index of {} is ahead of its log, rebuilding from {} messages", room, size);
+                index = new RoomIndex();
+            }
+            long fromSnapshot = index.nextSeq;
+            // The bulk of the log is read before the index is published, the writer never waits for it
+            catchUp(room, index, size);
+            rooms.put(room, index);
+            // Batches the writer appended meanwhile were skipped, they are in the log by now
+            index.lock.lock();
+            try {
+                catchUp(room, index, log.size(room));
+            } finally {
+                index.lock.unlock();
+            }
+            LOAD.record(System.nanoTime() - start);
+            Log.info("Search index of {} loaded, {} messages read from the log in {} ms", room,
+                    index.nextSeq - fromSnapshot, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (index.nextSeq > fromSnapshot) {
+                RoomIndex loaded = index;
+                Thread.ofVirtual().name("index-save-" + room).start(() -> save(room, loaded));
+            }
+            return index;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    // Indexes the log from index.nextSeq up to, not including, to
+    private void catchUp(String room, RoomIndex index, long to) throws IOException {
+        log.scan(room, 0, index.nextSeq, to, m -> index.add(m.seq(), m));
+    }
+
+    // The snapshot is taken under the lock by reference, and written without it
+    private void save(String room, RoomIndex index) {
+        index.saveLock.lock();
+        try {
+            List<String> names = new ArrayList<>();
+            List<long[]> lists = new ArrayList<>();
+            int[] sizes;
+            long next;
+            index.lock.lock();
+            try {
+                next = index.nextSeq;
+                if (next == index.savedSeq) return;
+                sizes = new int[index.terms.size()];
+                for (Map.Entry<String, Postings> e : index.terms.entrySet()) {
+                    sizes[names.size()] = e.getValue().size;
+                    names.add(e.getKey());
+                    lists.add(e.getValue().seqs);
+                }
+            } finally {
+                index.lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            Path file = fileOf(room);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                buf.putInt(MAGIC).put(VERSION);
+                putVarint(buf, next);
+                putVarint(buf, names.size());
+                for (int t = 0; t < names.size(); t++) {
+                    byte[] term = names.get(t).getBytes(StandardCharsets.UTF_8);
+                    if (buf.remaining() < term.length + 20) drain(ch, buf);
+                    putVarint(buf, term.length);
+                    buf.put(term);
+                    long[] seqs = lists.get(t);
+                    putVarint(buf, sizes[t]);
+                    long prev = 0;
+                    for (int i = 0; i < sizes[t]; i++) {
+                        if (buf.remaining() < 10) drain(ch, buf);
+                        putVarint(buf, seqs[i] - prev);
+                        prev = seqs[i];
+                    }
+                }
+                drain(ch, buf);
+                ch.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Log.info("Search index of {} saved up to {} in {} ms", room, next,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            index.lock.lock();
+            try {
+                index.savedSeq = next;
+            } finally {
+                index.lock.unlock();
+            }
+        } catch (IOException e) {
+            Log.warn("Erro ao salvar índice de {}: {}", room, e.getMessage());
+        } finally {
+            index.lock.lock();
+            try {
+                index.saving = false;
+            } finally {
+                index.lock.unlock();
+            }
+            index.saveLock.unlock();
+        }
+    }
+
+    // An empty index when there is no usable snapshot, the log is read from the start then
+    private RoomIndex readSnapshot(String room) {
+        RoomIndex index = new RoomIndex();
+        Path file = fileOf(room);
+        if (!Files.exists(file)) return index;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (in.getInt() != MAGIC) throw new IOException("Not an index file");
+            byte version = in.get();
+            if (version != VERSION) throw new IOException("Unsupported index file version " + version);
+            long next = getVarint(in);
+            long terms = getVarint(in);
+            for (long t = 0; t < terms; t++) {
+                int length = (int) getVarint(in);
+                String term = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                // Every gap takes at least one byte, a bigger count means a corrupted file
+                long count = getVarint(in);
+                if (count > in.remaining()) throw new IOException("Corrupted index file");
+                Postings p = new Postings((int) count);
+                long seq = 0;
+                for (int i = 0; i < count; i++) {
+                    seq += getVarint(in);
+                    p.add(seq);
+                }
+                index.terms.put(term, p);
+            }
+            index.nextSeq = next;
+            index.savedSeq = next;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Search index of {} unreadable, rebuilding from the log: {}", room, e.toString());
+            return new RoomIndex();
+        }
+    }
+
+    private Path fileOf(String room) {
+        return dir.resolve(MessageLog.encodeName(room) + SUFFIX);
+    }
+
+    private static void drain(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    // Unsigned LEB128, like the context files
+    private static void putVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupted index file");
+    }
+
+    private static class RoomIndex {
+        final ReentrantLock lock = new ReentrantLock();
+        final ReentrantLock saveLock = new ReentrantLock(); // one snapshot write at a time
+        final Map<String, Postings> terms = new HashMap<>();
+        long nextSeq;  // messages below this are indexed
+        long savedSeq; // nextSeq of the last snapshot
+        boolean saving;
+
+        void add(long seq, Message message) {
+            for (String term : terms(message.line())) {
+                terms.computeIfAbsent(term, t -> new Postings(2)).add(seq);
+            }
+            nextSeq = seq + 1;
+            INDEXED.mark();
+        }
+    }
+
+    // Growable array of ascending sequence numbers; a term repeated in a message is stored once
+    private static class Postings {
+        long[] seqs;
+        int size;
+
+        Postings(int capacity) {
+            seqs = new long[Math.max(capacity, 1)];
+        }
+
+        void add(long seq) {
+            if (size > 0 && seqs[size - 1] == seq) return;
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, size * 2);
+            seqs[size++] = seq;
+        }
+    }
+}
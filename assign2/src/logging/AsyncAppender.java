@@ -0,0 +1,144 @@
+package logging;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer of preallocated log events with a single thread writing them out.
+ * Producers claim a sequence number with a CAS, fill the slot in place and publish it by writing
+ * its sequence; when the ring is full the event is dropped and counted, a producer never waits.
+ * Formatting, the timestamp text and the stream writes all happen on the appender thread.
+ */
+class AsyncAppender {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static final class Slot {
+        volatile long seq = -1; // sequence of the event in the slot once it is complete
+        Level level;
+        long time;
+        String thread;
+        String template;
+        Object a1, a2, a3;
+        Throwable error;
+        int suppressed;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next sequence to claim
+    private volatile long tail = 0;                   // next sequence to write
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    AsyncAppender(PrintStream out, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // power of two for the mask
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) slots[i] = new Slot();
+        this.mask = size - 1;
+        this.out = out;
+        this.writer = Thread
+                .ofPlatform()
+                .name("log-appender")
+                .daemon(true)
+                .unstarted(this::run);
+        writer.start();
+    }
+
+    boolean offer(Level level, String template, Object a1, Object a2, Object a3, Throwable error, int suppressed) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= slots.length || closed) {
+                dropped.increment();
+                return false;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        Slot s = slots[(int) seq & mask];
+        s.level = level;
+        s.time = System.currentTimeMillis();
+        s.thread = Thread.currentThread().getName();
+        s.template = template;
+        s.a1 = a1;
+        s.a2 = a2;
+        s.a3 = a3;
+        s.error = error;
+        s.suppressed = suppressed;
+        s.seq = seq; // publica o evento
+        return true;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /** Writes what is already queued and stops the appender thread. */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        while (true) {
+            Slot s = slots[(int) next & mask];
+            if (s.seq != next) {
+                out.flush();
+                // A claimed slot that is not published yet is still waited for
+                if (closed && head.get() == next) return;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            line.setLength(0);
+            format(line, s);
+            out.println(line);
+            if (s.error != null) s.error.printStackTrace(out);
+
+            s.template = null;
+            s.a1 = s.a2 = s.a3 = null;
+            s.error = null;
+            s.thread = null;
+            tail = ++next;
+        }
+    }
+
+    private void format(StringBuilder line, Slot s) {
+        TIME.formatTo(Instant.ofEpochMilli(s.time), line);
+        line.append(' ').append(s.level);
+        if (s.level.name().length() == 4) line.append(' ');
+        line.append(" [").append(s.thread.isEmpty() ? "virtual" : s.thread).append("] ");
+
+        // "{}" is replaced by the next argument, the template itself is a constant
+        Object[] args = {s.a1, s.a2, s.a3};
+        int argIndex = 0;
+        String t = s.template;
+        int from = 0;
+        int at;
+        while ((at = t.indexOf("{}", from)) >= 0) {
+            line.append(t, from, at);
+            line.append(argIndex < args.length ? String.valueOf(args[argIndex++]) : "{}");
+            from = at + 2;
+        }
+        line.append(t, from, t.length());
+
+        if (s.suppressed > 0) {
+            line.append(" (").append(s.suppressed).append(" similar messages suppressed)");
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package logging;
+
+public enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF;
+
+    static Level parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return INFO;
+        }
+    }
+}
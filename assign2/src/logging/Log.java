@@ -0,0 +1,108 @@
+package logging;
+
+/**
+ * Server log. Events go to a ring buffer and are written to stdout by a background thread, so a
+ * request thread never waits on the console. Messages are templates with up to three "{}"
+ * placeholders, e.g. Log.info("User connected: {}", username); the text is only built by the appender.
+ * A disabled level costs one int comparison. Each template gets at most chat.log.maxPerSecond events
+ * per second, the rest are counted and reported with the next one that gets through.
+ *
+ * Configuration: chat.log.level (DEBUG, INFO, WARN, ERROR, OFF; default INFO),
+ * chat.log.bufferSize (8192 events) and chat.log.maxPerSecond (50, 0 disables the limit).
+ */
+public class Log {
+    private static final int DEBUG = Level.DEBUG.ordinal();
+    private static final int INFO = Level.INFO.ordinal();
+    private static final int WARN = Level.WARN.ordinal();
+    private static final int ERROR = Level.ERROR.ordinal();
+
+    private static volatile int threshold = Level.parse(System.getProperty("chat.log.level", "INFO")).ordinal();
+    private static final RateLimiter limiter = new RateLimiter(Integer.getInteger("chat.log.maxPerSecond", 50));
+
+    // Started on the first event that is actually logged
+    private static class AppenderHolder {
+        static final AsyncAppender APPENDER = new AsyncAppender(System.out, Integer.getInteger("chat.log.bufferSize", 8192));
+    }
+
+    private Log() {}
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return threshold <= DEBUG;
+    }
+
+    public static void debug(String msg) {
+        if (threshold <= DEBUG) log(Level.DEBUG, msg, null, null, null, null);
+    }
+
+    public static void debug(String template, Object a1) {
+        if (threshold <= DEBUG) log(Level.DEBUG, template, a1, null, null, null);
+    }
+
+    public static void debug(String template, Object a1, Object a2) {
+        if (threshold <= DEBUG) log(Level.DEBUG, template, a1, a2, null, null);
+    }
+
+    public static void debug(String template, Object a1, Object a2, Object a3) {
+        if (threshold <= DEBUG) log(Level.DEBUG, template, a1, a2, a3, null);
+    }
+
+    public static void info(String msg) {
+        if (threshold <= INFO) log(Level.INFO, msg, null, null, null, null);
+    }
+
+    public static void info(String template, Object a1) {
+        if (threshold <= INFO) log(Level.INFO, template, a1, null, null, null);
+    }
+
+    public static void info(String template, Object a1, Object a2) {
+        if (threshold <= INFO) log(Level.INFO, template, a1, a2, null, null);
+    }
+
+    public static void info(String template, Object a1, Object a2, Object a3) {
+        if (threshold <= INFO) log(Level.INFO, template, a1, a2, a3, null);
+    }
+
+    public static void warn(String msg) {
+        if (threshold <= WARN) log(Level.WARN, msg, null, null, null, null);
+    }
+
+    public static void warn(String template, Object a1) {
+        if (threshold <= WARN) log(Level.WARN, template, a1, null, null, null);
+    }
+
+    public static void warn(String template, Object a1, Object a2) {
+        if (threshold <= WARN) log(Level.WARN, template, a1, a2, null, null);
+    }
+
+    public static void error(String msg, Throwable error) {
+        if (threshold <= ERROR) log(Level.ERROR, msg, null, null, null, error);
+    }
+
+    public static void error(String template, Object a1) {
+        if (threshold <= ERROR) log(Level.ERROR, template, a1, null, null, null);
+    }
+
+    public static void error(String template, Object a1, Object a2) {
+        if (threshold <= ERROR) log(Level.ERROR, template, a1, a2, null, null);
+    }
+
+    /** Events lost because the ring buffer was full. */
+    public static long dropped() {
+        return AppenderHolder.APPENDER.dropped();
+    }
+
+    /** Writes out everything logged so far; called from the shutdown hook. */
+    public static void close() {
+        AppenderHolder.APPENDER.close();
+    }
+
+    private static void log(Level level, String template, Object a1, Object a2, Object a3, Throwable error) {
+        int suppressed = limiter.acquire(template);
+        if (suppressed < 0) return;
+        AppenderHolder.APPENDER.offer(level, template, a1, a2, a3, error, suppressed);
+    }
+}
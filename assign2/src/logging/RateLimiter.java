@@ -0,0 +1,42 @@
+package logging;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * At most maxPerSecond log events per message template and second.
+ * Templates are string constants, so they are told apart by identity and hashed into a fixed table;
+ * two templates sharing a slot share its budget. No locks, no allocation.
+ */
+class RateLimiter {
+    private static final int SLOTS = 256;
+
+    private final int maxPerSecond;
+    private final AtomicLongArray windows = new AtomicLongArray(SLOTS);
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(SLOTS);
+    private final AtomicIntegerArray suppressed = new AtomicIntegerArray(SLOTS);
+
+    RateLimiter(int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * -1 if the event is over the limit and must be dropped; otherwise the number of events of the
+     * slot suppressed since the last one that got through, so the appender can report them.
+     */
+    int acquire(String template) {
+        if (maxPerSecond <= 0) return 0;
+        int i = System.identityHashCode(template) & (SLOTS - 1);
+        long second = System.currentTimeMillis() / 1000;
+        long window = windows.get(i);
+        // Only the thread that moves the window resets the count
+        if (window != second && windows.compareAndSet(i, window, second)) {
+            counts.set(i, 0);
+        }
+        if (counts.incrementAndGet(i) > maxPerSecond) {
+            suppressed.incrementAndGet(i);
+            return -1;
+        }
+        return suppressed.getAndSet(i, 0);
+    }
+}
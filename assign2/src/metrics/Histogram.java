@@ -0,0 +1,89 @@
+package metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in nanoseconds with HDR-style log-linear buckets: every power of two is split
+ * into 16 buckets, so any recorded value is reported within 1/16 (about 6%) of its real value.
+ * The buckets are fixed at creation (976 longs), record() never allocates and never locks.
+ * Counts are kept since the start of the server.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {}
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /** Upper bound of the bucket holding the given percentile (0-100), 0 if nothing was recorded. */
+    public long percentile(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Values below SUB_COUNT have a bucket each; above, the top SUB_BITS bits after the leading one pick the bucket
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return (long) (SUB_COUNT + sub) << (exp - SUB_BITS);
+    }
+
+    private static long upperBound(int index) {
+        return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        long n = count.sum();
+        double mean = n == 0 ? 0 : (double) sum.sum() / n;
+        return String.format(Locale.ROOT, "count=%d mean_us=%.1f p50_us=%.1f p90_us=%.1f p99_us=%.1f p999_us=%.1f max_us=%.1f",
+                n, mean / 1000, percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0,
+                percentile(99.9) / 1000.0, max.get() / 1000.0);
+    }
+}
@@ -0,0 +1,49 @@
+package metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event counter with the rate of the last reporting interval.
+ * mark() is a LongAdder increment; the rate is only computed when the reporter ticks.
+ */
+public class Meter {
+    private final LongAdder count = new LongAdder();
+
+    // Written only by tick(), under the meter's monitor
+    private long lastCount = 0;
+    private long lastTick = System.nanoTime();
+    private volatile double rate = 0;
+
+    public void mark() {
+        count.increment();
+    }
+
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /** Events per second between the last two ticks. */
+    public double rate() {
+        return rate;
+    }
+
+    synchronized void tick(long now) {
+        long current = count.sum();
+        long elapsed = now - lastTick;
+        if (elapsed > 0) {
+            rate = (current - lastCount) * 1e9 / elapsed;
+        }
+        lastCount = current;
+        lastTick = now;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "count=%d rate=%.1f/s", count.sum(), rate);
+    }
+}
@@ -0,0 +1,104 @@
+package metrics;
+
+import logging.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide registry of meters, histograms and gauges, by name.
+ * Instrumented code looks its metrics up once (static field or constructor) and keeps the reference,
+ * so the message path only does LongAdder/atomic updates. The reporter thread ticks the meters and
+ * rewrites the snapshot file every interval; STATS reads the same snapshot.
+ */
+public class Metrics {
+    public static final long INTERVAL_MILLIS = Long.getLong("chat.metrics.intervalSeconds", 10) * 1000;
+    public static final String FILE = System.getProperty("chat.metrics.file",
+            System.getProperty("chat.data.dir", "data") + "/metrics.txt");
+
+    private static final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final long startedAt = System.currentTimeMillis();
+    private static Thread reporter;
+
+    private Metrics() {}
+
+    public static Meter meter(String name) {
+        return meters.computeIfAbsent(name, k -> new Meter());
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /** Value read at snapshot time, e.g. a queue depth; replaces a gauge with the same name. */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** One line per metric, "name key=value ...", sorted by name. */
+    public static List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime_s=" + (System.currentTimeMillis() - startedAt) / 1000 + " at=" + Instant.now());
+        new TreeMap<>(gauges).forEach((name, g) -> {
+            long value;
+            try {
+                value = g.getAsLong();
+            } catch (RuntimeException e) {
+                return; // a gauge must never break the snapshot
+            }
+            lines.add(name + " value=" + value);
+        });
+        new TreeMap<>(meters).forEach((name, m) -> lines.add(name + " " + m));
+        new TreeMap<>(histograms).forEach((name, h) -> lines.add(name + " " + h));
+        return lines;
+    }
+
+    static void tick() {
+        long now = System.nanoTime();
+        for (Meter m : meters.values()) {
+            m.tick(now);
+        }
+    }
+
+    /** Starts the daemon thread that ticks the meters and dumps the snapshot to FILE (empty: no file). */
+    public static synchronized void startReporter() {
+        if (reporter != null || INTERVAL_MILLIS <= 0) return;
+        reporter = Thread
+                .ofVirtual()
+                .name("metrics-reporter")
+                .unstarted(() -> {
+                    while (true) {
+                        try {
+                            Thread.sleep(INTERVAL_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        tick();
+                        if (!FILE.isEmpty()) {
+                            dump(Paths.get(FILE));
+                        }
+                    }
+                });
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    // Written next to the target and renamed over it, readers never see half a snapshot
+    private static void dump(Path file) {
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, snapshot(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warn("Erro ao gravar métricas: {}", e.getMessage());
+        }
+    }
+}
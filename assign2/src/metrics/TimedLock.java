@@ -0,0 +1,53 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock that records how long lock() waited when the lock was taken by another thread.
+ * An uncontended lock() is a single tryLock and records nothing, so the histogram counts contended
+ * acquisitions only. Wraps a ReentrantLock instead of extending it, which would make it Serializable.
+ */
+public class TimedLock implements Lock {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Histogram waits;
+
+    public TimedLock(Histogram waits) {
+        this.waits = waits;
+    }
+
+    @Override
+    public void lock() {
+        if (lock.tryLock()) return;
+        long start = System.nanoTime();
+        lock.lock();
+        waits.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        lock.lockInterruptibly();
+    }
+
+    @Override
+    public boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        return lock.tryLock(time, unit);
+    }
+
+    @Override
+    public void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return lock.newCondition();
+    }
+}
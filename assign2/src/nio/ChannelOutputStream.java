@@ -0,0 +1,64 @@
+package nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutputStream of an NIO session. Writes are collected until flush(), which hands one chunk to
+ * the connection's event loop; flush() waits while the connection has too much unsent, like a socket.
+ */
+class ChannelOutputStream extends OutputStream {
+    private final Connection connection;
+    private final ReentrantLock lock = new ReentrantLock(); // not synchronized, flush() may park
+    private ByteArrayOutputStream buffer; // only allocated while a message is being written
+
+    ChannelOutputStream(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) {
+        lock.lock();
+        try {
+            buffer().write(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        lock.lock();
+        try {
+            buffer().write(b, off, len);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            byte[] bytes = buffer != null && buffer.size() > 0 ? buffer.toByteArray() : null;
+            buffer = null;
+            if (bytes != null) connection.enqueue(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The session writer has flushed by now, unless it is stuck on a client that does not read;
+    // closing first wakes it instead of waiting behind it for the lock
+    @Override
+    public void close() {
+        connection.close();
+    }
+
+    private ByteArrayOutputStream buffer() {
+        if (buffer == null) buffer = new ByteArrayOutputStream(256);
+        return buffer;
+    }
+}
@@ -0,0 +1,408 @@
+package nio;
+
+import auth.AuthenticationHandler;
+import logging.Log;
+import protocol.FrameDecoder;
+import protocol.Opcode;
+import rooms.Session;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client connection of the NIO front-end.
+ * Socket and SSLEngine state is only touched by the owning event loop; other threads hand over
+ * outbound bytes through a queue and inbound lines are processed by a short-lived virtual thread.
+ * Both queues are bounded: a writer waits while too many bytes are still unsent, and reading stops
+ * while too many lines are still unhandled, like a blocking socket would.
+ */
+class Connection {
+    private static final int MAX_LINE = 64 * 1024;
+    private static final long MAX_OUTBOUND_BYTES = Long.getLong("chat.nio.outboundBytes", 256 * 1024);
+    private static final int MAX_INBOX = Integer.getInteger("chat.nio.inboxLines", 256);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final Inbound CLOSE_MARKER = new Inbound((byte) 0, 0, "CLOSE"); // compared by identity
+
+    // A line, or a binary frame whose payload is already decoded; COMMAND frames are handled like lines
+    private record Inbound(byte opcode, int roomId, String text) {}
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final EventLoop loop;
+    private final NioServer.Handler handler;
+    final Session session;
+
+    private SelectionKey key;
+    private ByteBuffer inbound;       // buffer being unwrapped during a read event
+    private ByteBuffer leftover;      // partial TLS record kept between reads
+    private ByteBuffer pendingNet;    // encrypted bytes the socket did not accept yet
+    private ByteArrayOutputStream lineBuffer;
+    private FrameDecoder frameDecoder;  // created on the first bytes after UPGRADE BINARY
+    private FrameDecoder.Listener frameListener;
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private final Condition outboundDrained = outboundLock.newCondition();
+    private long outboundBytes = 0; // queued but not yet encrypted, guarded by outboundLock
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Queue<Inbound> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    private final AtomicBoolean readPaused = new AtomicBoolean(false);
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private boolean authenticated = false; // only used by the dispatching thread
+    private long handshakeStart;            // event loop only, 0 once the handshake is recorded
+    private long handshakeStartNanos;
+
+    Connection(SocketChannel channel, SSLEngine engine, EventLoop loop, NioServer.Handler handler) {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.handler = handler;
+        this.session = Session.open(new ChannelOutputStream(this));
+    }
+
+    // ---- event loop side ----
+
+    void start() {
+        try {
+            key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            handshakeStart = System.currentTimeMillis();
+            handshakeStartNanos = System.nanoTime();
+            engine.beginHandshake();
+            pump();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void onReadable() throws IOException {
+        ByteBuffer buf = loop.readBuffer;
+        buf.clear();
+        if (leftover != null) {
+            buf.put(leftover);
+            leftover = null;
+        }
+        int n = channel.read(buf);
+        if (n < 0) {
+            close();
+            return;
+        }
+        buf.flip();
+        process(buf);
+    }
+
+    // Unwraps what was read; while reading is paused the rest stays in leftover
+    private void process(ByteBuffer buf) throws IOException {
+        inbound = buf;
+        try {
+            pump();
+        } finally {
+            inbound = null;
+            if (buf.hasRemaining() && !closed.get()) {
+                leftover = ByteBuffer.allocate(buf.remaining());
+                leftover.put(buf).flip();
+            }
+        }
+    }
+
+    void onWritable() throws IOException {
+        channel.write(pendingNet);
+        if (pendingNet.hasRemaining()) return;
+        pendingNet = null;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        pump();
+    }
+
+    // Drives the handshake and moves data until nothing more can be done without new input or socket space
+    private void pump() throws IOException {
+        while (!closed.get()) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                case NEED_WRAP -> {
+                    if (!wrap(EMPTY)) return;
+                }
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    if (!unwrap()) return;
+                }
+                default -> {
+                    boolean progress = unwrap();
+                    progress |= flushOutbound();
+                    if (!progress) return;
+                }
+            }
+        }
+    }
+
+    private boolean unwrap() throws IOException {
+        if (inbound == null || !inbound.hasRemaining() || readPaused.get()) return false;
+
+        ByteBuffer app = loop.appBuffer;
+        app.clear();
+        SSLEngineResult result = engine.unwrap(inbound, app);
+        checkHandshake(result);
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                return false;
+            case BUFFER_OVERFLOW:
+                throw new IOException("TLS application buffer overflow");
+            case CLOSED:
+                close();
+                return false;
+            default:
+                break;
+        }
+        if (result.bytesProduced() > 0) {
+            app.flip();
+            onData(app);
+        }
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    // Returns false when the socket could not take everything, the rest waits for OP_WRITE
+    private boolean wrap(ByteBuffer src) throws IOException {
+        if (pendingNet != null) return false;
+
+        ByteBuffer net = loop.netBuffer;
+        net.clear();
+        SSLEngineResult result = engine.wrap(src, net);
+        checkHandshake(result);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new IOException("TLS packet buffer overflow");
+        }
+        net.flip();
+        channel.write(net);
+        if (net.hasRemaining()) {
+            pendingNet = ByteBuffer.allocate(net.remaining());
+            pendingNet.put(net).flip();
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return false;
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            close();
+            return false;
+        }
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    // Whichever side sends the last handshake message sees FINISHED, exactly once
+    private void checkHandshake(SSLEngineResult result) {
+        if (handshakeStart != 0 && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            AuthenticationHandler.recordHandshake(engine.getSession(), handshakeStart, System.nanoTime() - handshakeStartNanos);
+            handshakeStart = 0;
+        }
+    }
+
+    private boolean flushOutbound() throws IOException {
+        boolean progress = false;
+        long sent = 0;
+        ByteBuffer buf;
+        try {
+            while (pendingNet == null && (buf = outbound.peek()) != null) {
+                int before = buf.remaining();
+                wrap(buf);
+                sent += before - buf.remaining();
+                if (!buf.hasRemaining()) outbound.poll();
+                if (buf.remaining() == before) break;
+                progress = true;
+            }
+        } finally {
+            if (sent > 0) released(sent);
+        }
+        return progress;
+    }
+
+    // Wakes a writer waiting in enqueue once the bytes it waits for are encrypted
+    private void released(long bytes) {
+        outboundLock.lock();
+        try {
+            outboundBytes -= bytes;
+            outboundDrained.signalAll();
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    // Too many lines waiting for the handler: stop reading, TCP pushes back on the client.
+    // The dispatcher resumes once it has caught up; whichever side flips readPaused back does the resume.
+    private void pauseReading() {
+        if (key == null || !readPaused.compareAndSet(false, true)) return;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        if (inboxSize.get() <= MAX_INBOX / 2 && readPaused.compareAndSet(true, false)) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeReading() {
+        if (closed.get() || !key.isValid()) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        if (leftover == null) return;
+        ByteBuffer buf = loop.readBuffer;
+        buf.clear();
+        buf.put(leftover).flip();
+        leftover = null;
+        try {
+            process(buf);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // Splits decrypted bytes into lines (or frames); a line is only decoded once it is complete
+    private void onData(ByteBuffer app) throws IOException {
+        if (session.isBinary()) {
+            onFrames(app);
+            return;
+        }
+        while (app.hasRemaining()) {
+            byte b = app.get();
+            if (b == '\n') {
+                byte[] bytes = lineBuffer == null ? new byte[0] : lineBuffer.toByteArray();
+                lineBuffer = null;
+                int len = bytes.length;
+                if (len > 0 && bytes[len - 1] == '\r') len--;
+                deliver(new Inbound(Opcode.COMMAND, 0, new String(bytes, 0, len, StandardCharsets.UTF_8)));
+            } else {
+                if (lineBuffer == null) lineBuffer = new ByteArrayOutputStream(128);
+                if (lineBuffer.size() >= MAX_LINE) throw new IOException("Line too long");
+                lineBuffer.write(b);
+            }
+        }
+    }
+
+    // The client sends nothing between UPGRADE BINARY and UPGRADE_OK, so no line is cut in half here
+    private void onFrames(ByteBuffer app) throws IOException {
+        if (frameDecoder == null) {
+            frameDecoder = new FrameDecoder();
+            frameListener = (opcode, roomId, seq, payload, offset, length) -> deliver(new Inbound(opcode, roomId,
+                    length == 0 ? "" : new String(payload, offset, length, StandardCharsets.UTF_8)));
+        }
+        frameDecoder.feed(app, frameListener);
+    }
+
+    // ---- any thread ----
+
+    /**
+     * Queues bytes for the client and makes sure the event loop will encrypt and send them.
+     * Waits while more than MAX_OUTBOUND_BYTES are still queued, so a client that does not read
+     * backs up into its session's OutboundQueue, where the overflow policy applies.
+     */
+    void enqueue(byte[] bytes) throws IOException {
+        outboundLock.lock();
+        try {
+            // A chunk bigger than the limit still goes out alone
+            while (outboundBytes > 0 && outboundBytes + bytes.length > MAX_OUTBOUND_BYTES && !closed.get()) {
+                outboundDrained.await();
+            }
+            if (closed.get()) throw new IOException("Connection closed");
+            outboundBytes += bytes.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the client to read");
+        } finally {
+            outboundLock.unlock();
+        }
+        outbound.add(ByteBuffer.wrap(bytes));
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    pump();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        outboundLock.lock();
+        try {
+            outboundDrained.signalAll(); // a writer waiting for room gives up
+        } finally {
+            outboundLock.unlock();
+        }
+
+        // Whatever was queued before the close (e.g. AUTH_FAIL) still gets a chance to go out
+        loop.execute(() -> {
+            try {
+                if (key != null) flushOutbound();
+                engine.closeOutbound();
+                ByteBuffer net = loop.netBuffer;
+                net.clear();
+                engine.wrap(EMPTY, net);
+                net.flip();
+                if (pendingNet == null) channel.write(net);
+            } catch (IOException | RuntimeException ignored) {
+            } finally {
+                if (key != null) key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        });
+        // onClose runs after any line still being handled, like the finally block of a blocking handler
+        deliver(CLOSE_MARKER);
+    }
+
+    // Lines of one connection are handled in order, by at most one virtual thread at a time
+    private void deliver(Inbound line) {
+        inbox.add(line);
+        if (inboxSize.incrementAndGet() >= MAX_INBOX && line != CLOSE_MARKER) pauseReading();
+        if (dispatching.compareAndSet(false, true)) {
+            Thread.startVirtualThread(this::dispatch);
+        }
+    }
+
+    private void dispatch() {
+        do {
+            Inbound line;
+            while ((line = inbox.poll()) != null) {
+                if (inboxSize.decrementAndGet() <= MAX_INBOX / 2 && readPaused.compareAndSet(true, false)) {
+                    loop.execute(this::resumeReading);
+                }
+                if (line == CLOSE_MARKER) {
+                    handler.onClose(session);
+                    continue;
+                }
+                if (closed.get()) continue;
+                try {
+                    if (!authenticated) {
+                        if (!handler.onFirstLine(session, line.text())) {
+                            close();
+                            continue;
+                        }
+                        authenticated = true;
+                    } else if (line.opcode() == Opcode.COMMAND) {
+                        handler.onLine(session, line.text());
+                    } else {
+                        handler.onFrame(session, line.opcode(), line.roomId(), line.text());
+                    }
+                } catch (Exception e) {
+                    Log.info("Client connection failed: {}", e.getMessage());
+                    close();
+                }
+            }
+            dispatching.set(false);
+        } while (!inbox.isEmpty() && dispatching.compareAndSet(false, true));
+    }
+}
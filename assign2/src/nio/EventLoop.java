@@ -0,0 +1,76 @@
+package nio;
+
+import logging.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many connections.
+ * The scratch buffers are shared by all connections of the loop, since only the loop thread touches them;
+ * a connection only keeps its own bytes when a TLS record or a socket write is left half done.
+ */
+class EventLoop implements Runnable {
+    final Selector selector;
+    final ByteBuffer readBuffer;  // leftover + freshly read TLS records
+    final ByteBuffer appBuffer;   // decrypted application data
+    final ByteBuffer netBuffer;   // encrypted output
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(int packetBufferSize, int appBufferSize) throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(packetBufferSize * 2);
+        this.appBuffer = ByteBuffer.allocate(appBufferSize);
+        this.netBuffer = ByteBuffer.allocateDirect(packetBufferSize);
+    }
+
+    /** Runs the task on the loop thread. */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(Connection connection) {
+        execute(connection::start);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.error("Selector failed: {}", e.getMessage());
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Event loop task failed: {}", e.getMessage());
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package nio;
+
+import auth.AuthenticationHandler;
+import logging.Log;
+import metrics.Meter;
+import metrics.Metrics;
+import rooms.Session;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking front-end for the chat server.
+ * A fixed set of event loops, each with its own Selector, does all socket and TLS work through SSLEngine.
+ * Complete lines are handed to the Handler on a virtual thread that only lives while the connection
+ * has input to process, so idle connections cost a channel, an engine and a few small buffers.
+ * The wire protocol is the same as the blocking SSLSocket front-end: newline-delimited text, or binary
+ * frames after UPGRADE BINARY.
+ */
+public class NioServer {
+    private static final Meter ACCEPTED = Metrics.meter("connections.accepted");
+
+    /** Callbacks into the chat logic, called in order for each connection and never concurrently. */
+    public interface Handler {
+        // Returns false to close the connection
+        boolean onFirstLine(Session session, String line);
+
+        void onLine(Session session, String line);
+
+        // Binary frame, once the session has upgraded (opcodes in protocol.Opcode)
+        void onFrame(Session session, byte opcode, int roomId, String payload);
+
+        void onClose(Session session);
+    }
+
+    private final int port;
+    private final SSLContext context;
+    private final Handler handler;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, SSLContext context, int loopCount, Handler handler) throws IOException {
+        this.port = port;
+        this.context = context;
+        this.handler = handler;
+
+        SSLSession probe = context.createSSLEngine().getSession();
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(probe.getPacketBufferSize(), probe.getApplicationBufferSize());
+        }
+    }
+
+    /** Starts the event loops and accepts connections on the calling thread, never returns. */
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread.ofPlatform()
+                    .name("nio-loop-" + i)
+                    .daemon(true)
+                    .start(loops[i]);
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            Log.info("Server listening on port {} (nio, {} event loops)", port, loops.length);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                ACCEPTED.mark();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    SSLEngine engine = context.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    AuthenticationHandler.configure(engine);
+
+                    EventLoop loop = loops[next];
+                    next = (next + 1) % loops.length;
+                    loop.register(new Connection(channel, engine, loop, handler));
+                } catch (IOException e) {
+                    Log.info("Client connection failed: {}", e.getMessage());
+                    channel.close();
+                }
+            }
+        }
+    }
+}
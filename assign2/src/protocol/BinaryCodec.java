@@ -0,0 +1,122 @@
+package protocol;
+
+/**
+ * Layout of a binary frame, all integers big-endian:
+ * <pre>
+ *   int32  length   bytes that follow this field (HEADER - 4 + payload)
+ *   byte   opcode   see Opcode
+ *   int32  roomId   0 when the frame is not about a room
+ *   int64  seq      sequence number of the message in its room, 0 when not a message
+ *   bytes  payload  UTF-8 text (raw bytes for HISTORY)
+ * </pre>
+ * A frame is encoded straight into its final array, without an intermediate byte[] for the payload.
+ */
+public final class BinaryCodec {
+    public static final int HEADER = 4 + 1 + 4 + 8;
+    public static final int MAX_PAYLOAD = 64 * 1024; // same limit as a text line
+
+    private BinaryCodec() {}
+
+    public static byte[] encode(byte opcode, int roomId, long seq, String payload) {
+        return encode(opcode, roomId, seq, "", payload);
+    }
+
+    public static byte[] encode(byte opcode, int roomId, long seq, byte[] payload) {
+        byte[] frame = newFrame(opcode, roomId, seq, payload.length);
+        System.arraycopy(payload, 0, frame, HEADER, payload.length);
+        return frame;
+    }
+
+    /** Frame whose payload is "sender: text", without building that String; an empty sender leaves only the text. */
+    public static byte[] encode(byte opcode, int roomId, long seq, String sender, String text) {
+        byte[] frame = newFrame(opcode, roomId, seq, prefixLength(sender) + utf8Length(text));
+        putUtf8(text, frame, putPrefix(sender, frame, HEADER));
+        return frame;
+    }
+
+    // Header filled in, payload left to the caller
+    private static byte[] newFrame(byte opcode, int roomId, long seq, int length) {
+        byte[] frame = new byte[HEADER + length];
+        putInt(frame, 0, HEADER - 4 + length);
+        frame[4] = opcode;
+        putInt(frame, 5, roomId);
+        putLong(frame, 9, seq);
+        return frame;
+    }
+
+    /** Bytes of the "sender: " prefix, 0 for an empty sender. */
+    public static int prefixLength(String sender) {
+        return sender.isEmpty() ? 0 : utf8Length(sender) + 2;
+    }
+
+    /** Writes the "sender: " prefix at off and returns the offset after it. */
+    public static int putPrefix(String sender, byte[] b, int off) {
+        if (sender.isEmpty()) return off;
+        off = putUtf8(sender, b, off);
+        b[off++] = ':';
+        b[off++] = ' ';
+        return off;
+    }
+
+    public static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    public static long getLong(byte[] b, int off) {
+        return (long) getInt(b, off) << 32 | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    public static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    /** Bytes s takes in UTF-8; an unpaired surrogate counts as the '?' that replaces it, like String.getBytes. */
+    public static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) n++;
+            else n += 3;
+        }
+        return n;
+    }
+
+    /** Writes s as UTF-8 at off, which must have utf8Length(s) bytes of room; returns the offset after it. */
+    public static int putUtf8(String s, byte[] b, int off) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[off++] = (byte) c;
+            } else if (c < 0x800) {
+                b[off++] = (byte) (0xC0 | c >> 6);
+                b[off++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[off++] = (byte) (0xF0 | cp >> 18);
+                b[off++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                b[off++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                b[off++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                b[off++] = '?';
+            } else {
+                b[off++] = (byte) (0xE0 | c >> 12);
+                b[off++] = (byte) (0x80 | c >> 6 & 0x3F);
+                b[off++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return off;
+    }
+}
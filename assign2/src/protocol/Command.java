@@ -0,0 +1,21 @@
+package protocol;
+
+/**
+ * Splitting of a protocol line into command, first argument and the rest.
+ * Same result as line.split(" ", 3), without going through String.split's regex fast-path checks
+ * and intermediate list: a command line is split once per message received.
+ */
+public class Command {
+    public static final int MAX_PARTS = 3;
+
+    private Command() {}
+
+    /** {command}, {command, arg} or {command, arg, rest}; empty parts are kept like split(" ", 3) does. */
+    public static String[] split(String line) {
+        int first = line.indexOf(' ');
+        if (first < 0) return new String[]{line};
+        int second = line.indexOf(' ', first + 1);
+        if (second < 0) return new String[]{line.substring(0, first), line.substring(first + 1)};
+        return new String[]{line.substring(0, first), line.substring(first + 1, second), line.substring(second + 1)};
+    }
+}
@@ -0,0 +1,54 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder of binary frames for one connection.
+ * Bytes are fed as they arrive, in pieces of any size; each complete frame is passed to the listener
+ * as header fields and a slice of the decoder's own payload buffer, which is reused for the next frame.
+ * Nothing is allocated per frame; the buffer only grows for a payload bigger than any before it.
+ * Not thread-safe, one reading thread per connection.
+ */
+public final class FrameDecoder {
+
+    public interface Listener {
+        // payload[offset, offset + length) is only valid during the call
+        void onFrame(byte opcode, int roomId, long seq, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    private final byte[] header = new byte[BinaryCodec.HEADER];
+    private int headerFill = 0;
+    private byte[] payload = new byte[256];
+    private int payloadLength = 0;
+    private int payloadFill = 0;
+
+    public void feed(ByteBuffer in, Listener listener) throws IOException {
+        while (in.hasRemaining()) {
+            if (headerFill < header.length) {
+                int n = Math.min(header.length - headerFill, in.remaining());
+                in.get(header, headerFill, n);
+                headerFill += n;
+                if (headerFill < header.length) return;
+
+                payloadLength = BinaryCodec.getInt(header, 0) - (BinaryCodec.HEADER - 4);
+                if (payloadLength < 0 || payloadLength > BinaryCodec.MAX_PAYLOAD) {
+                    throw new IOException("Invalid frame length: " + payloadLength);
+                }
+                if (payloadLength > payload.length) {
+                    payload = new byte[Math.min(Math.max(payloadLength, payload.length * 2), BinaryCodec.MAX_PAYLOAD)];
+                }
+                payloadFill = 0;
+            }
+
+            int n = Math.min(payloadLength - payloadFill, in.remaining());
+            in.get(payload, payloadFill, n);
+            payloadFill += n;
+            if (payloadFill == payloadLength) {
+                headerFill = 0;
+                listener.onFrame(header[4], BinaryCodec.getInt(header, 5), BinaryCodec.getLong(header, 9),
+                        payload, 0, payloadLength);
+            }
+        }
+    }
+}
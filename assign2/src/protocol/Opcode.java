@@ -0,0 +1,40 @@
+package protocol;
+
+/**
+ * Frame types of the binary protocol (see BinaryCodec).
+ * Server to client frames mirror the text lines; the room id and sequence number travel in the header
+ * instead of being parsed out of the text.
+ */
+public final class Opcode {
+    // Server -> client
+    public static final byte TEXT = 1;      // reply or notice, the same line the text protocol sends
+    public static final byte MESSAGE = 2;   // room message: room id, sequence number, "sender: text"
+    public static final byte AI_CHUNK = 3;  // piece of an AI answer, raw text (newlines included)
+    public static final byte AI_DONE = 4;   // end of the AI answer of the room
+    public static final byte ROOM = 5;      // room id -> name, sent when the session joins the room
+    public static final byte PONG = 6;
+    public static final byte HISTORY = 7;   // history replay as one DEFLATE block, seq is the first message's (see Frame.history)
+
+    // Client -> server
+    public static final byte COMMAND = 16;  // a command line, as in the text protocol ("ENTER geral")
+    public static final byte SEND = 17;     // message to the room in the header (0: current room)
+    public static final byte PING = 18;
+
+    private Opcode() {}
+
+    public static String name(byte opcode) {
+        return switch (opcode) {
+            case TEXT -> "TEXT";
+            case MESSAGE -> "MESSAGE";
+            case AI_CHUNK -> "AI_CHUNK";
+            case AI_DONE -> "AI_DONE";
+            case ROOM -> "ROOM";
+            case PONG -> "PONG";
+            case HISTORY -> "HISTORY";
+            case COMMAND -> "COMMAND";
+            case SEND -> "SEND";
+            case PING -> "PING";
+            default -> "UNKNOWN(" + opcode + ")";
+        };
+    }
+}
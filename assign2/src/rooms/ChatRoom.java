@@ -1,36 +1,217 @@
 package rooms;
 
 import data.DataUtils;
-import org.json.*;
+import metrics.Histogram;
+import metrics.Meter;
+import metrics.Metrics;
+import metrics.TimedLock;
+
 import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatRoom {
+    public static final int HISTORY_CAPACITY = Integer.getInteger("chat.history.capacity", 100);
+    // How long a dropped connection may come back before the room is told the user left
+    public static final long RESUME_GRACE_MILLIS = Long.getLong("chat.resume.graceMs", 15000);
+    // Fewer messages than this are replayed one frame each even to sessions that asked for compression
+    public static final int COMPRESS_MIN_MESSAGES = Integer.getInteger("chat.compress.minMessages", 4);
+
+    private static final Histogram LOCK_WAIT = Metrics.histogram("lock.room.wait");
+    private static final Histogram FANOUT = Metrics.histogram("broadcast.fanout");
+    private static final Meter MESSAGES = Metrics.meter("messages");
+    private static final Meter RESUMES = Metrics.meter("resume");
+    private static final Meter RESUME_REPLAYED = Metrics.meter("resume.replayed");
+    private static final Meter BLOCKS_BUILT = Metrics.meter("history.block.built");
+    private static final Meter BLOCKS_CACHED = Metrics.meter("history.block.cached");
+
+    // Loaded page from memory and/or disk, firstSeq is the sequence number of the first message
+    public record Page(long firstSeq, List<Message> messages) {}
+
+    // Compressed messages up to, not including, nextSeq
+    private record Block(Frame frame, long nextSeq) {}
+
+    public final int id; // interned in RoomIds, stable across restarts
     public String name;
     public boolean isAI;
     public String prompt;
-    public JSONArray context;
+    public int[] context; // Ollama token ids, kept unboxed
+    private volatile boolean aiCacheEnabled = true;
+    private volatile boolean warming = false; // AI room whose bootstrap prompt has not finished yet
 
-    private final ReentrantLock lock = new ReentrantLock();
+    private final TimedLock lock = new TimedLock(LOCK_WAIT);
+    private final Meter messages;
     private final List<Session> members = new ArrayList<>();
-    private final List<String> history = new ArrayList<>();
+    private final HistoryBuffer history = new HistoryBuffer(HISTORY_CAPACITY);
+    private final Map<String, Object> away = new HashMap<>(); // dropped users whose left notice is still pending
+    private final ReentrantLock blockLock = new ReentrantLock();
+    private Block tailBlock; // compressed history tail shared by compressed joins, until the next message
 
-    public ChatRoom(String name, boolean isAI, String prompt, JSONArray context) {
+    public ChatRoom(String name, boolean isAI, String prompt, int[] context) {
+        this.id = RoomIds.intern(name);
         this.name = name;
         this.isAI = isAI;
         this.prompt = prompt;
         this.context = context;
+        this.messages = Metrics.meter("room." + name + ".messages");
     }
 
     public void join(Session s) {
+        Block block = s.isCompressed() ? tailBlock() : null; // compressed outside the room lock
         lock.lock();
         try {
             members.add(s);
-            s.out.println(buildJoinBanner(name));
-            for (String msg : history) {
-                s.out.println(msg);
+            s.send(Frame.room(id, name));
+            s.send(buildJoinBanner(name));
+            long seq = history.firstSeq();
+            if (seq > 0) {
+                s.send("[" + seq + " older messages, use /history " + name + " " + seq + " <count>]");
+            }
+            sendFrom(s, block, seq);
+            arrived(s);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejoins a reconnected session with only the messages from fromSeq on, instead of the whole history.
+     * Messages already out of memory are not replayed, the client gets the /history range for them.
+     * Ends with "RESUMED <room> <nextSeq> <missed>".
+     */
+    public void resume(Session s, long fromSeq) {
+        lock.lock();
+        try {
+            members.add(s);
+            s.send(Frame.room(id, name));
+            long next = history.nextSeq();
+            long from = Math.max(0, Math.min(fromSeq, next));
+            long first = Math.max(from, history.firstSeq());
+            if (from < first) {
+                s.send("[" + (first - from) + " missed messages, use /history " + name + " " + first + " " + (first - from) + "]");
+            }
+            // Rejoined during RESUME_SESSION, before COMPRESS can be negotiated; the delta is small anyway
+            sendFrom(s, null, first);
+            s.send("RESUMED " + name + " " + next + " " + (next - from));
+            RESUMES.mark();
+            RESUME_REPLAYED.mark(next - first);
+            arrived(s);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sends messages to one session: one compressed block if it asked for that, else one frame each. */
+    public void replay(Session s, List<Message> messages) {
+        if (s.isCompressed() && messages.size() >= COMPRESS_MIN_MESSAGES) {
+            s.send(Frame.history(id, messages));
+            BLOCKS_BUILT.mark();
+        } else {
+            for (Message msg : messages) {
+                s.send(Frame.message(msg));
+            }
+        }
+    }
+
+    // Messages from seq on, under the room lock: the block built before taking it, then what arrived since
+    private void sendFrom(Session s, Block block, long seq) {
+        if (block != null && block.nextSeq() >= history.firstSeq()) {
+            s.send(block.frame());
+            seq = block.nextSeq();
+        }
+        for (Message msg : history.range(seq, history.nextSeq())) {
+            s.send(Frame.message(msg));
+        }
+    }
+
+    // Compressed once per state of the history, so a burst of joins between two messages shares one block;
+    // the other joiners wait on blockLock for it, not on the room lock
+    private Block tailBlock() {
+        blockLock.lock();
+        try {
+            Block cached = tailBlock;
+            if (cached != null && cached.nextSeq() == nextSeq()) {
+                BLOCKS_CACHED.mark();
+                return cached;
+            }
+            tailBlock = compressHistory();
+            return tailBlock;
+        } finally {
+            blockLock.unlock();
+        }
+    }
+
+    // The in-memory history as one block, null if too few messages to be worth it
+    private Block compressHistory() {
+        List<Message> tail;
+        long next;
+        lock.lock();
+        try {
+            next = history.nextSeq();
+            tail = history.toList();
+        } finally {
+            lock.unlock();
+        }
+        if (tail.size() < COMPRESS_MIN_MESSAGES) return null;
+        BLOCKS_BUILT.mark();
+        return new Block(Frame.history(id, tail), next);
+    }
+
+    private long nextSeq() {
+        lock.lock();
+        try {
+            return history.nextSeq();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A user back within the grace window, or still here on another session, is not announced again
+    private void arrived(Session s) {
+        String user = s.getUsername();
+        if (away.remove(user) == null && !hasOtherSession(s)) {
+            broadcastServer("[" + user + " entered the room]");
+        }
+    }
+
+    private boolean hasOtherSession(Session s) {
+        for (Session m : members) {
+            if (m != s && Objects.equals(m.getUsername(), s.getUsername())) return true;
+        }
+        return false;
+    }
+
+    /** Member whose connection was lost: the left notice waits for the grace window, a resume cancels it. */
+    public void drop(Session s) {
+        String user = s.getUsername();
+        lock.lock();
+        try {
+            members.remove(s);
+            if (hasOtherSession(s)) return;
+            if (RESUME_GRACE_MILLIS <= 0) {
+                broadcastServer("[" + user + " left the room]");
+                return;
+            }
+            Object mark = new Object();
+            away.put(user, mark);
+            Thread.ofVirtual().name("leave-" + user).start(() -> {
+                try {
+                    Thread.sleep(RESUME_GRACE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                expire(user, mark);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void expire(String user, Object mark) {
+        lock.lock();
+        try {
+            if (away.remove(user, mark)) {
+                broadcastServer("[" + user + " left the room]");
             }
-            broadcastServer("[" + s.getUsername() + " entered the room]");
         } finally {
             lock.unlock();
         }
@@ -46,37 +227,80 @@ public class ChatRoom {
         }
     }
 
-    public void broadcast(String msg) {
+    // The sequence number is taken under the lock, so history, log and frames agree on it
+    public Message broadcast(String sender, String text) {
+        messages.mark();
+        MESSAGES.mark();
         lock.lock();
         try {
             // Add the message to the history
+            Message msg = new Message(id, history.nextSeq(), System.currentTimeMillis(), sender, text);
             history.add(msg);
 
-            // Saves the message to the data file
+            // Queues the message for the persistence writer, never waits on disk
             DataUtils.addMessage(this.name, msg);
 
-            // Send to all members
+            // Encoded once; each member only queues the shared frame, a slow client cannot hold the lock
+            long start = System.nanoTime();
+            Frame frame = Frame.message(msg);
             for (Session s : members) {
-                s.out.println(msg);
-                s.out.flush();
+                s.send(frame);
             }
+            FANOUT.record(System.nanoTime() - start);
+            return msg;
         } finally {
             lock.unlock();
         }
     }
 
+    // Server notices are only delivered, they are not part of the room history
     public void broadcastServer(String msg) {
         lock.lock();
         try {
-            history.add(msg);
+            Frame frame = Frame.of(msg);
+            for (Session s : members) {
+                s.send(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Piece of an AI answer that is still being generated; only delivered, the full text goes to history in endStream
+    public void broadcastChunk(String text) {
+        Frame frame = Frame.chunk(id, text);
+        lock.lock();
+        try {
             for (Session s : members) {
-                s.out.println(msg);
+                s.send(frame);
             }
         } finally {
             lock.unlock();
         }
     }
 
+    // Ends the streamed answer; the text is stored like a normal broadcast, null if the answer failed half way
+    public void endStream(String sender, String text) {
+        lock.lock();
+        try {
+            if (text != null) {
+                Message msg = new Message(id, history.nextSeq(), System.currentTimeMillis(), sender, text);
+                history.add(msg);
+                DataUtils.addMessage(this.name, msg);
+            }
+            Frame frame = Frame.done(id);
+            for (Session s : members) {
+                s.send(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
@@ -85,30 +309,114 @@ public class ChatRoom {
         return isAI;
     }
 
+    public boolean isAICacheEnabled() {
+        return aiCacheEnabled;
+    }
+
+    public void setAICacheEnabled(boolean enabled) {
+        this.aiCacheEnabled = enabled;
+    }
+
+    public boolean isWarming() {
+        return warming;
+    }
+
+    public void setWarming(boolean warming) {
+        this.warming = warming;
+    }
+
     public String getPrompt() {
         return prompt;
     }
 
-    public List<String> getHistory() {
+    public List<Message> getHistory() {
         lock.lock();
         try {
-            return new ArrayList<>(history);
+            return history.toList();
         } finally {
             lock.unlock();
         }
     }
 
-    public void setHistory(List<String> msgs) {
+    /** Fills the in-memory history with the tail of the room's message log. */
+    public void loadHistory() {
+        long count = DataUtils.messageCount(name);
+        List<Message> recent = DataUtils.readMessages(name, id, Math.max(0, count - HISTORY_CAPACITY), HISTORY_CAPACITY);
         lock.lock();
         try {
-            history.clear();
-            history.addAll(msgs);
+            history.reset(count, recent);
         } finally {
             lock.unlock();
         }
     }
 
-    public JSONArray getAIContext() {
+    /** Up to count messages right before beforeSeq, older ones are read from disk. */
+    public Page page(long beforeSeq, int count) {
+        long from;
+        long to;
+        long memoryFirst;
+        List<Message> inMemory;
+        lock.lock();
+        try {
+            to = Math.min(beforeSeq, history.nextSeq());
+            from = Math.max(0, to - count);
+            // [from, diskEnd) comes from disk and [memoryFirst, to) from the ring; either may be empty
+            memoryFirst = Math.max(from, history.firstSeq());
+            inMemory = history.range(memoryFirst, to);
+        } finally {
+            lock.unlock();
+        }
+
+        long diskEnd = Math.min(to, memoryFirst);
+        if (from >= diskEnd) {
+            return new Page(memoryFirst, inMemory);
+        }
+        List<Message> messages = new ArrayList<>(DataUtils.readMessages(name, id, from, (int) (diskEnd - from)));
+        messages.addAll(inMemory);
+        return new Page(from, messages);
+    }
+
+    /**
+     * The newest messages containing every term, newest first, from the search index; those still in
+     * memory are not read from disk.
+     */
+    public List<Message> search(List<String> terms, int limit) {
+        long[] seqs = DataUtils.searchMessages(name, terms, limit);
+        Message[] found = new Message[seqs.length];
+        int missing = 0;
+        lock.lock();
+        try {
+            for (int i = 0; i < seqs.length; i++) {
+                found[i] = history.get(seqs[i]);
+                if (found[i] == null) missing++;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (missing > 0) {
+            // Newest first, so the ones on disk are read in reverse; the log wants them ascending
+            long[] older = new long[missing];
+            for (int i = seqs.length - 1, j = 0; i >= 0; i--) {
+                if (found[i] == null) older[j++] = seqs[i];
+            }
+            // Matched by seq: the log may return fewer messages than asked for (past its end, unreadable, an IO error)
+            Map<Long, Message> read = new HashMap<>();
+            for (Message msg : DataUtils.readMessages(name, id, older)) {
+                read.put(msg.seq(), msg);
+            }
+            for (int i = 0; i < seqs.length; i++) {
+                if (found[i] == null) found[i] = read.get(seqs[i]);
+            }
+        }
+        List<Message> result = new ArrayList<>(found.length);
+        for (Message msg : found) {
+            if (msg != null) result.add(msg);
+        }
+        return result;
+    }
+
+    public int[] getAIContext() {
         lock.lock();
         try {
             return context;
@@ -117,7 +425,7 @@ public class ChatRoom {
         }
     }
 
-    public void setAIContext(JSONArray context) {
+    public void setAIContext(int[] context) {
         lock.lock();
         try {
             this.context = context;
@@ -0,0 +1,170 @@
+package rooms;
+
+import protocol.BinaryCodec;
+import protocol.Opcode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * One message for the client, in the text protocol (a line, newline included) or as a binary frame.
+ * Each form is encoded at most once, the first time a session of that protocol writes the frame;
+ * a broadcast hands the same Frame to every member, so fan-out never re-encodes the String.
+ * Immutable apart from those cached encodings, safe to share between sessions.
+ */
+public final class Frame {
+    public static final Frame PONG = new Frame(Opcode.PONG, 0, 0, "", "PONG", false);
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+
+    private final byte opcode;
+    private final int roomId;
+    private final long seq;
+    private final String sender;   // "sender: " prefix of both forms, empty for anything but messages
+    private final String payload;  // binary payload
+    private final String line;     // text protocol line, null if text clients do not get this frame
+    private final boolean upgrade; // last frame in text, the session's writer switches to binary after it
+    private final byte[] block;    // compressed history, sent after the line / as the payload; null otherwise
+
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+
+    private Frame(byte opcode, int roomId, long seq, String payload, String line, boolean upgrade) {
+        this(opcode, roomId, seq, "", payload, line, upgrade, null);
+    }
+
+    private Frame(byte opcode, int roomId, long seq, String sender, String payload, String line, boolean upgrade, byte[] block) {
+        this.opcode = opcode;
+        this.roomId = roomId;
+        this.seq = seq;
+        this.sender = sender;
+        this.payload = payload;
+        this.line = line;
+        this.upgrade = upgrade;
+        this.block = block;
+    }
+
+    // Reply or notice, the same text in both protocols
+    public static Frame of(String line) {
+        return new Frame(Opcode.TEXT, 0, 0, line, line, false);
+    }
+
+    // Sender and text are written straight into the encoded bytes, the "sender: text" line is never built
+    public static Frame message(Message msg) {
+        return new Frame(Opcode.MESSAGE, msg.roomId(), msg.seq(), msg.sender(), msg.text(), msg.text(), false, null);
+    }
+
+    /**
+     * Consecutive messages of a room as one DEFLATE block, for sessions that asked for COMPRESS DEFLATE.
+     * Inflated, the block is one record per message: int32 length, then the UTF-8 "sender: text".
+     * The seq of the frame is the first message's, the rest follow in order. In the text protocol the block
+     * comes right after the line "HISTORY_BLOCK <roomId> <firstSeq> <bytes>".
+     */
+    public static Frame history(int roomId, List<Message> messages) {
+        int size = 0;
+        for (Message m : messages) {
+            size += 4 + BinaryCodec.prefixLength(m.sender()) + BinaryCodec.utf8Length(m.text());
+        }
+        byte[] raw = new byte[size];
+        int off = 0;
+        for (Message m : messages) {
+            int start = off + 4;
+            off = BinaryCodec.putUtf8(m.text(), raw, BinaryCodec.putPrefix(m.sender(), raw, start));
+            BinaryCodec.putInt(raw, start - 4, off - start);
+        }
+
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size / 2 + 64);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buf = new byte[Math.min(size + 64, 16 * 1024)];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] block = out.toByteArray();
+        long firstSeq = messages.isEmpty() ? 0 : messages.get(0).seq();
+        return new Frame(Opcode.HISTORY, roomId, firstSeq, "", "", "HISTORY_BLOCK " + roomId + " " + firstSeq + " " + block.length, false, block);
+    }
+
+    // Chunks travel on a single text line, so there they are escaped; a binary frame carries the raw text
+    public static Frame chunk(int roomId, String text) {
+        return new Frame(Opcode.AI_CHUNK, roomId, 0, text, "AI_CHUNK " + escapeChunk(text), false);
+    }
+
+    public static Frame done(int roomId) {
+        return new Frame(Opcode.AI_DONE, roomId, 0, "", "AI_DONE", false);
+    }
+
+    // Text clients know rooms by name only
+    public static Frame room(int roomId, String name) {
+        return new Frame(Opcode.ROOM, roomId, 0, name, null, false);
+    }
+
+    public static Frame upgrade(String line) {
+        return new Frame(Opcode.TEXT, 0, 0, line, line, true);
+    }
+
+    public boolean isUpgrade() {
+        return upgrade;
+    }
+
+    // Bytes on the wire in the text protocol, newline included
+    public int length() {
+        return line == null ? 0 : text().length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, false);
+    }
+
+    public void writeTo(OutputStream out, boolean binary) throws IOException {
+        if (binary) {
+            out.write(binary());
+        } else if (line != null) {
+            out.write(text());
+        }
+    }
+
+    // Benign race: two writers may both encode, either array is the same bytes
+    private byte[] text() {
+        byte[] bytes = textBytes;
+        if (bytes == null) {
+            int extra = block == null ? 0 : block.length;
+            bytes = new byte[BinaryCodec.prefixLength(sender) + BinaryCodec.utf8Length(line) + 1 + extra];
+            int end = BinaryCodec.putUtf8(line, bytes, BinaryCodec.putPrefix(sender, bytes, 0));
+            bytes[end] = '\n';
+            if (block != null) System.arraycopy(block, 0, bytes, end + 1, block.length);
+            textBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] binary() {
+        byte[] bytes = binaryBytes;
+        if (bytes == null) {
+            bytes = block != null
+                    ? BinaryCodec.encode(opcode, roomId, seq, block)
+                    : BinaryCodec.encode(opcode, roomId, seq, sender, payload);
+            binaryBytes = bytes;
+        }
+        return bytes;
+    }
+
+    // Newlines and backslashes escaped, so a chunk stays on one protocol line
+    private static String escapeChunk(String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    @Override
+    public String toString() {
+        if (line == null) return Opcode.name(opcode) + " " + roomId + " " + payload;
+        return sender.isEmpty() ? line : sender + ": " + line;
+    }
+}
@@ -0,0 +1,71 @@
+package rooms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed-capacity ring buffer with the most recent messages of a room.
+ * Every message keeps the sequence number it has in the room's message log,
+ * so anything older than firstSeq() has to be paged in from disk.
+ * Not thread-safe, callers hold the room lock.
+ */
+public class HistoryBuffer {
+    private final Message[] ring;
+    private long nextSeq = 0;
+    private int size = 0;
+
+    public HistoryBuffer(int capacity) {
+        this.ring = new Message[capacity];
+    }
+
+    // msg.seq() is expected to be nextSeq(), the buffer does not renumber messages
+    public long add(Message msg) {
+        long seq = nextSeq++;
+        ring[(int) (seq % ring.length)] = msg;
+        if (size < ring.length) size++;
+        return seq;
+    }
+
+    /** Replaces the contents with the given messages, the last one having sequence number nextSeq - 1. */
+    public void reset(long nextSeq, List<Message> recent) {
+        Arrays.fill(ring, null);
+        this.size = 0;
+        this.nextSeq = nextSeq - recent.size();
+        for (Message msg : recent) {
+            add(msg);
+        }
+    }
+
+    public long firstSeq() {
+        return nextSeq - size;
+    }
+
+    public long nextSeq() {
+        return nextSeq;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** The message with that sequence number, null if it is no longer (or not yet) in memory. */
+    public Message get(long seq) {
+        return seq >= firstSeq() && seq < nextSeq ? ring[(int) (seq % ring.length)] : null;
+    }
+
+    /** Messages with from <= seq < to that are still in memory. */
+    public List<Message> range(long from, long to) {
+        from = Math.max(from, firstSeq());
+        to = Math.min(to, nextSeq);
+        List<Message> result = new ArrayList<>((int) Math.max(0, to - from));
+        for (long seq = from; seq < to; seq++) {
+            result.add(ring[(int) (seq % ring.length)]);
+        }
+        return result;
+    }
+
+    public List<Message> toList() {
+        return range(firstSeq(), nextSeq);
+    }
+}
@@ -0,0 +1,22 @@
+package rooms;
+
+/**
+ * A chat message of a room, as kept in the history and in the message log.
+ * seq is the message's position in the room's log, the number HISTORY pages and binary frames carry;
+ * timestamp is the server clock (epoch millis) when it was broadcast, 0 for messages stored before
+ * timestamps were kept. Clients see it as the line "sender: text".
+ */
+public record Message(int roomId, long seq, long timestamp, String sender, String text) {
+
+    // The line is only built where a String is really needed (AI prompt, logs); frames encode the parts
+    public String line() {
+        return sender.isEmpty() ? text : sender + ": " + text;
+    }
+
+    /** Message stored as a plain "sender: text" line; without the separator the whole line is the text. */
+    public static Message parse(int roomId, long seq, long timestamp, String line) {
+        int sep = line.indexOf(": ");
+        if (sep < 0) return new Message(roomId, seq, timestamp, "", line);
+        return new Message(roomId, seq, timestamp, line.substring(0, sep), line.substring(sep + 2));
+    }
+}
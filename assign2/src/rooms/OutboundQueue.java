@@ -0,0 +1,202 @@
+package rooms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to go out to one client, drained by the session's own virtual thread.
+ * Room broadcasts and command replies only enqueue, so a client that stops reading never holds up
+ * the room lock; when its queue is full the overflow policy decides what is lost.
+ */
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, // discard the oldest queued line
+        DISCONNECT,  // close the session, the client can RESUME_SESSION later
+        COALESCE     // replace the whole backlog with a "[N messages skipped]" notice
+    }
+
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.session.queueCapacity", 1024);
+    public static final OverflowPolicy DEFAULT_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("chat.session.overflow", "COALESCE").toUpperCase());
+    private static final Duration CLOSE_DRAIN = Duration.ofSeconds(1);
+
+    private final OutputStream out;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private Runnable onDisconnect; // set by start(), before the writer runs
+    private Thread writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private long skipped = 0;      // coalesced lines not yet reported to the client
+    private long drops = 0;        // total lines lost to overflow
+    private boolean overflowed = false;
+    private boolean closing = false;
+
+    public OutboundQueue(OutputStream out, int capacity, OverflowPolicy policy) {
+        this.out = out;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /** Starts the writer; frames offered before this are kept and go out first. */
+    public void start(Runnable onDisconnect) {
+        this.onDisconnect = onDisconnect;
+        this.writer = Thread.ofVirtual().name("session-writer").start(this::drain);
+    }
+
+    /** Queues a frame for the client, never blocks on the socket. Returns false if the frame was refused. */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closing || overflowed) return false;
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        Frame oldest = frames.pollFirst();
+                        if (oldest.isUpgrade()) { // the switch to binary must reach the writer
+                            frames.pollFirst();
+                            frames.addFirst(oldest);
+                        }
+                        drops++;
+                    }
+                    case COALESCE -> {
+                        Frame upgrade = null;
+                        for (Frame f : frames) {
+                            if (f.isUpgrade()) upgrade = f;
+                        }
+                        skipped += frames.size();
+                        drops += frames.size();
+                        frames.clear();
+                        if (upgrade != null) {
+                            frames.addLast(upgrade);
+                            skipped--;
+                            drops--;
+                        }
+                    }
+                    case DISCONNECT -> {
+                        drops += frames.size() + 1;
+                        frames.clear();
+                        overflowed = true;
+                        ready.signal();
+                        // Not left to the writer, which may be blocked on this very client; nor run here, under the room lock
+                        Thread.ofVirtual().name("session-overflow").start(onDisconnect);
+                        return false;
+                    }
+                }
+            }
+            frames.addLast(frame);
+            ready.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long drops() {
+        lock.lock();
+        try {
+            return drops;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting lines and gives the writer a moment to send what is queued (e.g. an AUTH_FAIL).
+     * The caller closes the underlying stream afterwards, which also unblocks a writer stuck on a slow client.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closing = true;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (Thread.currentThread() == writer) return;
+        try {
+            writer.join(CLOSE_DRAIN);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stop() {
+        lock.lock();
+        try {
+            closing = true;
+            frames.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes everything queued so far and flushes once per batch
+    private void drain() {
+        List<Frame> batch = new ArrayList<>();
+        boolean binary = false; // switched by the upgrade frame, so what was queued before it still goes out as text
+        while (true) {
+            long skippedNow;
+            lock.lock();
+            try {
+                while (frames.isEmpty() && skipped == 0 && !closing && !overflowed) {
+                    ready.await();
+                }
+                if (overflowed) return; // the session is being closed
+                if (frames.isEmpty() && skipped == 0) return; // closing and nothing left
+                skippedNow = skipped;
+                skipped = 0;
+                batch.addAll(frames);
+                frames.clear();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (skippedNow > 0) {
+                    Frame.of("[" + skippedNow + " messages skipped]").writeTo(out, binary);
+                }
+                for (Frame frame : batch) {
+                    frame.writeTo(out, binary);
+                    if (frame.isUpgrade()) binary = true;
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Broken connection, the reading side notices it and closes the session
+                stop();
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "depth=" + frames.size() + "/" + capacity + " drops=" + drops + " policy=" + policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package rooms;
+
+import data.DataUtils;
+import logging.Log;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned room names: every room name gets a small int id, the same across restarts.
+ * Ids are handed out in order (1, 2, ...) and each new one is appended to the room id file,
+ * so frames and messages carry 4 bytes instead of the name. 0 means "no room".
+ */
+public class RoomIds {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private static int lastId = 0;
+
+    static {
+        DataUtils.loadRoomIds().forEach((name, id) -> {
+            ids.put(name, id);
+            names.put(id, name);
+            lastId = Math.max(lastId, id);
+        });
+    }
+
+    private RoomIds() {}
+
+    public static int intern(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : assign(name);
+    }
+
+    /** Name of the room with that id, null if there is none. */
+    public static String name(int id) {
+        return names.get(id);
+    }
+
+    private static synchronized int assign(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) return existing;
+        int id = ++lastId;
+        try {
+            DataUtils.appendRoomId(id, name);
+        } catch (IOException e) {
+            // Still usable in this run; a restart may number the room differently
+            Log.warn("Erro ao gravar id da sala {}: {}", name, e.getMessage());
+        }
+        names.put(id, name);
+        ids.put(name, id);
+        return id;
+    }
+}
@@ -0,0 +1,49 @@
+package rooms;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * All chat rooms of the server, by name.
+ * Reads never lock and only one room is ever registered per name, so two clients creating
+ * the same room always end up with the same ChatRoom instance.
+ */
+public class RoomRegistry {
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    public ChatRoom get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Returns the existing room or registers the one built by the factory.
+     * The factory runs outside the map, since it may read the log from disk; if two threads race,
+     * both build a room and the one that loses the putIfAbsent is discarded.
+     */
+    public ChatRoom getOrCreate(String name, Function<String, ChatRoom> factory) {
+        ChatRoom room = rooms.get(name);
+        if (room != null) return room;
+        ChatRoom created = factory.apply(name);
+        room = rooms.putIfAbsent(name, created);
+        return room != null ? room : created;
+    }
+
+    /** Registers the room only if no room with that name exists yet. */
+    public boolean register(ChatRoom room) {
+        return rooms.putIfAbsent(room.getName(), room) == null;
+    }
+
+    public Collection<ChatRoom> all() {
+        return rooms.values();
+    }
+
+    public String listNames() {
+        return String.join(",", rooms.keySet());
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
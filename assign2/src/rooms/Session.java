@@ -1,26 +1,106 @@
 package rooms;
 
+import logging.Log;
+import metrics.Histogram;
+import metrics.Metrics;
+import metrics.TimedLock;
+
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class Session {
+    private static final Histogram LOCK_WAIT = Metrics.histogram("lock.session.wait");
+
     public final Socket socket;
     public final BufferedReader in;
-    public final PrintWriter out;
+    public final InputStream input; // raw bytes under in, read directly once the session speaks binary frames
+    private final OutputStream out;
+    private final OutboundQueue outbound;
     private volatile String username;
-    private final ReentrantLock lock = new ReentrantLock();
+    private final TimedLock lock = new TimedLock(LOCK_WAIT);
     private ChatRoom currentRoom = null;
     private String lastRoomName = null;
 
-    public Session(Socket socket) throws IOException {
+    private volatile boolean closed = false;
+    private volatile boolean binary = false;
+    private volatile boolean compressed = false; // history replays as one DEFLATE block (COMPRESS DEFLATE)
+
+    public static Session open(Socket socket) throws IOException {
+        return start(new Session(socket, socket.getInputStream(), socket.getOutputStream()));
+    }
+
+    // Session that is not backed by a socket, e.g. in-memory clients in benchmarks
+    public static Session open(InputStream in, OutputStream out) {
+        return start(new Session(null, in, out));
+    }
+
+    // Session whose input is pushed line by line by an event loop instead of being read from a stream
+    public static Session open(OutputStream out) {
+        return start(new Session(out));
+    }
+
+    private Session(OutputStream out) {
+        this.socket = null;
+        this.in = null;
+        this.input = null;
+        this.out = out; // already buffers until flush
+        this.outbound = new OutboundQueue(out, OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.DEFAULT_POLICY);
+    }
+
+    private Session(Socket socket, InputStream in, OutputStream out) {
         this.socket = socket;
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true); // autoflush
+        this.input = in;
+        this.in = new BufferedReader(new InputStreamReader(in));
+        this.out = new BufferedOutputStream(out); // flushed by the outbound writer after each batch
+        this.outbound = new OutboundQueue(this.out, OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.DEFAULT_POLICY);
+    }
+
+    // The writer's overflow callback closes the session, so it only starts once the session is fully built
+    private static Session start(Session session) {
+        session.outbound.start(() -> {
+            Log.warn("User disconnected (outbound queue full): {}", session.username);
+            session.close();
+        });
+        return session;
+    }
+
+    /** Queues a line for the client; only the session's writer thread touches out. */
+    public void send(String line) {
+        outbound.offer(Frame.of(line));
+    }
+
+    // Broadcasts encode once and hand the same frame to every member
+    public void send(Frame frame) {
+        outbound.offer(frame);
+    }
+
+    /**
+     * Switches the session to binary frames: "UPGRADE_OK" is the last text line, everything queued after it
+     * is framed. The client sends nothing between its UPGRADE and this line, so the readers can switch too.
+     */
+    public void upgradeToBinary() {
+        binary = true;
+        outbound.offer(Frame.upgrade("UPGRADE_OK"));
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void enableCompression() {
+        compressed = true;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
     }
 
-    public void flush() {
-        out.flush();
+    public int getQueueDepth() {
+        return outbound.depth();
+    }
+
+    public long getDropCount() {
+        return outbound.drops();
     }
 
     public ChatRoom getCurrentRoom() {
@@ -41,16 +121,6 @@ public class Session {
         }
     }
 
-    public void clearCurrentRoom() {
-        lock.lock();
-        try {
-            this.lastRoomName = (currentRoom != null) ? currentRoom.getName() : null;
-            this.currentRoom = null;
-        } finally {
-            lock.unlock();
-        }
-    }
-
     public String getLastRoomName() {
         lock.lock();
         try {
@@ -64,16 +134,27 @@ public class Session {
         lock.lock();
         try {
             if (currentRoom != null) {
-                currentRoom.leave(this);
+                currentRoom.drop(this); // the room waits a moment for a RESUME_SESSION before saying so
                 lastRoomName = currentRoom.getName();
                 currentRoom = null;
             }
-            socket.close();
-        } catch (IOException e) {
-            System.err.println("Error closing session: " + e.getMessage());
+            closed = true;
         } finally {
             lock.unlock();
         }
+
+        // Fora do lock: lets the writer send what is still queued before the socket goes away
+        outbound.close();
+        try {
+            if (socket != null) {
+                socket.close();
+            } else {
+                if (in != null) in.close();
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.warn("Error closing session: {}", e.getMessage());
+        }
     }
 
 
@@ -94,6 +175,7 @@ public class Session {
     }
 
     public boolean isClosed() {
+        if (socket == null) return closed;
         return socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown();
     }
 }
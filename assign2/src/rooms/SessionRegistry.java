@@ -0,0 +1,68 @@
+package rooms;
+
+import logging.Log;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Logged-in sessions and the last room of each user.
+ * Backed by concurrent maps, so lookups and the session monitor never block logins.
+ */
+public class SessionRegistry {
+    private final ConcurrentMap<String, Session> activeSessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> lastRooms = new ConcurrentHashMap<>();
+
+    public void activate(String username, Session session) {
+        activeSessions.put(username, session);
+    }
+
+    public Session get(String username) {
+        return activeSessions.get(username);
+    }
+
+    /** Removes the session, unless the user has already reconnected with a newer one. */
+    public void remove(Session session) {
+        String username = session.getUsername();
+        if (username == null) return;
+        activeSessions.remove(username, session);
+
+        String lastRoom = session.getLastRoomName();
+        if (lastRoom != null) {
+            lastRooms.put(username, lastRoom);
+        } else {
+            lastRooms.remove(username);
+        }
+    }
+
+    public String lastRoom(String username) {
+        return lastRooms.get(username);
+    }
+
+    public Collection<Session> all() {
+        return activeSessions.values();
+    }
+
+    public int activeCount() {
+        return activeSessions.size();
+    }
+
+    /** Closes and drops sessions that are closed or have not sent a PING within the timeout. */
+    public void sweep(long timeoutMillis) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : activeSessions.entrySet()) {
+            Session s = entry.getValue();
+            if (s.isClosed()) {
+                activeSessions.remove(entry.getKey(), s);
+                continue;
+            }
+            if (now - s.getLastPongTime() > timeoutMillis) {
+                Log.info("User disconnected: {}", s.getUsername());
+                s.close();
+                activeSessions.remove(entry.getKey(), s);
+            }
+        }
+    }
+}
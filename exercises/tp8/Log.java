@@ -0,0 +1,107 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous log for the sensor server: request threads only put the event in a bounded queue,
+ * a daemon thread formats and prints it. A full queue drops the event instead of blocking.
+ * Each message template is printed at most MAX_PER_SECOND times per second.
+ * Level with -Dlog.level=DEBUG|INFO|WARN|ERROR|OFF (default INFO, also for an unknown name).
+ * Every week is compiled on its own from its folder (javac Server.java Client.java), so tp8 and tp9
+ * each keep a copy of this class.
+ */
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int MAX_PER_SECOND = Integer.getInteger("log.maxPerSecond", 20);
+    private static final int threshold = parseLevel(System.getProperty("log.level", "INFO")).ordinal();
+
+    private record Event(Level level, String template, Object a1, Object a2, int suppressed) {}
+
+    // Contador por template: [segundo, mensagens nesse segundo, suprimidas]
+    private static final ConcurrentHashMap<String, AtomicLong[]> limits = new ConcurrentHashMap<>();
+    private static final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(4096);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread appender = new Thread(Log::run, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        // Drops after the last printed line would otherwise go unnoticed
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::reportDropped));
+    }
+
+    private Log() {}
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static void debug(String template, Object a1, Object a2) {
+        if (threshold <= Level.DEBUG.ordinal()) log(Level.DEBUG, template, a1, a2);
+    }
+
+    public static void info(String template, Object a1) {
+        if (threshold <= Level.INFO.ordinal()) log(Level.INFO, template, a1, null);
+    }
+
+    public static void info(String template, Object a1, Object a2) {
+        if (threshold <= Level.INFO.ordinal()) log(Level.INFO, template, a1, a2);
+    }
+
+    public static void warn(String template, Object a1) {
+        if (threshold <= Level.WARN.ordinal()) log(Level.WARN, template, a1, null);
+    }
+
+    private static void log(Level level, String template, Object a1, Object a2) {
+        AtomicLong[] limit = limits.computeIfAbsent(template, t -> new AtomicLong[]{new AtomicLong(), new AtomicLong(), new AtomicLong()});
+        long second = System.currentTimeMillis() / 1000;
+        long window = limit[0].get();
+        if (window != second && limit[0].compareAndSet(window, second)) limit[1].set(0);
+        if (limit[1].incrementAndGet() > MAX_PER_SECOND) {
+            limit[2].incrementAndGet();
+            return;
+        }
+        if (!queue.offer(new Event(level, template, a1, a2, (int) limit[2].getAndSet(0)))) {
+            dropped.increment();
+        }
+    }
+
+    private static void run() {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            Event e;
+            try {
+                e = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            reportDropped(); // the queue was full, now that it drains the loss is reported
+            line.setLength(0);
+            line.append(e.level()).append(' ');
+            String t = e.template();
+            int first = t.indexOf("{}");
+            int second = first < 0 ? -1 : t.indexOf("{}", first + 2);
+            if (first < 0) {
+                line.append(t);
+            } else if (second < 0) {
+                line.append(t, 0, first).append(e.a1()).append(t, first + 2, t.length());
+            } else {
+                line.append(t, 0, first).append(e.a1()).append(t, first + 2, second).append(e.a2()).append(t, second + 2, t.length());
+            }
+            if (e.suppressed() > 0) line.append(" (").append(e.suppressed()).append(" similar messages suppressed)");
+            System.out.println(line);
+        }
+    }
+
+    private static void reportDropped() {
+        long lost = dropped.sumThenReset();
+        if (lost > 0) System.out.println("WARN " + lost + " log events dropped (queue full)");
+    }
+}
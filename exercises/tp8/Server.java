@@ -18,7 +18,7 @@ public class Server {
         }
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server listening on port " + port);
+            Log.info("Server listening on port {}", port);
 
             while (true) {
                 Socket socket = serverSocket.accept();
@@ -38,12 +38,12 @@ public class Server {
             String request;
             while ((request = reader.readLine()) != null) {
                 String response = processRequest(request);
-                System.out.println("Request received: " + request + " -> " + response);
+                Log.debug("Request received: {} -> {}", request, response);
                 writer.println(response);
             }
 
         } catch (IOException e) {
-            System.out.println("Client disconnected: " + e.getMessage());
+            Log.warn("Client disconnected: {}", e.getMessage());
         }
     }
 